@@ -4,6 +4,7 @@ import org.kotemaru.android.postit.PostItConst.PostItColor;
 import org.kotemaru.android.postit.PostItConst.PostItFontSize;
 import org.kotemaru.android.postit.PostItConst.PostItShape;
 import org.kotemaru.android.postit.data.PostItData;
+import org.kotemaru.android.postit.data.PostItDataAsync;
 import org.kotemaru.android.postit.data.PostItDataProvider;
 import org.kotemaru.android.postit.data.TimerPattern;
 import org.kotemaru.android.postit.dialog.DatetimePickerDialogFragment;
@@ -20,6 +21,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
@@ -29,23 +32,33 @@ import android.widget.ListAdapter;
 import android.widget.ListView;
 import android.widget.RadioGroup;
 import android.widget.TextView;
+import android.widget.Toast;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
+import java.util.TimeZone;
 
 import de.timroes.android.listview.EnhancedListView;
 
 /**
  * タイマーが設定されている付箋の一覧を表示する。
+ * <li>予定表モードでは繰り返しの付箋を今後の発火日時毎に展開して表示する。
  */
 public class AlarmListActivity extends Activity {
 	private static final String TAG = AlarmListActivity.class.getSimpleName();
+	/** 予定表モードで表示する日数。 */
+	private static final int AGENDA_DAYS = 14;
+	/** 予定表モードで１つの付箋を展開する最大件数。 */
+	private static final int AGENDA_MAX_PER_NOTE = 20;
+	private static final long DAY_MS = 24L * 60 * 60 * 1000;
 
 	private EnhancedListView mListView;
 	private PostItDataAdapter mAdapter;
+	/** true=予定表モード。 */
+	private boolean mAgenda = false;
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -69,13 +82,28 @@ public class AlarmListActivity extends Activity {
 			public EnhancedListView.Undoable onDismiss(EnhancedListView listView, final int position) {
 				final PostItData data = mAdapter.getPostItData(position);
 				if (data == null) return null;
-				PostItDataProvider.removePostItData(context, data);
-				mAdapter.updateData(context);
+				mAdapter.remove(position);
+				// 一覧はMEMOを読んでいないので、元に戻す時のためにMEMOを含めて読んでから削除する。
+				final PostItData[] removed = { data };
+				PostItDataAsync.getPostItData(context, data.getId(), new PostItDataAsync.Callback<PostItData>() {
+					@Override
+					public void onResult(PostItData result) {
+						if (result != null) removed[0] = result;
+					}
+				});
+				PostItDataAsync.removePostItData(context, data, null);
 				return new EnhancedListView.Undoable() {
 					@Override
 					public void undo() {
-						PostItDataProvider.createPostItData(context, data);
-						mAdapter.updateData(context);
+						PostItDataAsync.createPostItData(context, removed[0], new PostItDataAsync.Callback<Long>() {
+							@Override
+							public void onResult(Long id) {
+								if (id == null) {
+									Toast.makeText(context, R.string.msg_data_error, Toast.LENGTH_SHORT).show();
+								}
+								mAdapter.updateData(context);
+							}
+						});
 					}
 				};
 			}
@@ -93,27 +121,123 @@ public class AlarmListActivity extends Activity {
 		mAdapter.updateData(this);
 	}
 
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		getMenuInflater().inflate(R.menu.menu_alarm_list, menu);
+		return true;
+	}
+
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		menu.findItem(R.id.action_agenda).setChecked(mAgenda);
+		return super.onPrepareOptionsMenu(menu);
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		switch (item.getItemId()) {
+		case R.id.action_agenda:
+			setAgenda(!mAgenda);
+			item.setChecked(mAgenda);
+			return true;
+		default:
+			break;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+
+	/**
+	 * 予定表モードの切り替え。
+	 * <li>予定表モードでは同じ付箋が複数行になるのでスワイプでの削除はできない。
+	 * @param agenda true=予定表モード
+	 */
+	private void setAgenda(boolean agenda) {
+		mAgenda = agenda;
+		if (agenda) {
+			mListView.discardUndo();
+			mListView.disableSwipeToDismiss();
+		} else {
+			mListView.enableSwipeToDismiss();
+		}
+		mAdapter.updateData(this);
+	}
+
+	/**
+	 * 一覧の１行。付箋データと表示する発火日時。
+	 */
+	private static class Item {
+		final PostItData mData;
+		final long mTime;
+
+		Item(PostItData data, long time) {
+			mData = data;
+			mTime = time;
+		}
+	}
+
 	private class PostItDataAdapter extends BaseAdapter {
-		private List<PostItData> mList;
+		private List<Item> mList;
 		private TimerPattern mTimerPattern = new TimerPattern();
+		/** 予定表の展開用の作業領域。 */
+		private final long[] mTimes = new long[AGENDA_MAX_PER_NOTE];
 
 		public PostItDataAdapter(AlarmListActivity alarmListActivity) {
 		}
 
-		public void updateData(Context context) {
-			List<PostItData> list = PostItDataProvider.getAllPostItData(context);
-			Iterator<PostItData> ite = list.iterator();
-			while (ite.hasNext()) {
-				PostItData data = ite.next();
-				if (data.getTimerPattern() == null) ite.remove();
+		/**
+		 * 付箋データの再読み込み。DBスレッドで読み込んで反映する。
+		 * @param context
+		 */
+		public void updateData(final Context context) {
+			PostItDataAsync.getAllPostItData(context, PostItDataProvider.PROJECTION_DEFAULT, new PostItDataAsync.Callback<List<PostItData>>() {
+				@Override
+				public void onResult(List<PostItData> list) {
+					if (list == null) {
+						Toast.makeText(context, R.string.msg_data_error, Toast.LENGTH_SHORT).show();
+						return;
+					}
+					setData(list);
+				}
+			});
+		}
+
+		/**
+		 * 一覧の設定。タイマーの無い付箋は除き、発火日時順に並べる。
+		 * <li>予定表モードでは繰り返しの付箋を AGENDA_DAYS 日先までの発火日時毎に展開する。
+		 * <li>期間内に発火日時が無い繰り返しの付箋は、通常モードと同じく次の発火日時で１行とする。
+		 * @param list 付箋データ
+		 */
+		private void setData(List<PostItData> list) {
+			long now = System.currentTimeMillis();
+			long end = now + AGENDA_DAYS * DAY_MS;
+			TimeZone tz = TimeZone.getDefault();
+			List<Item> items = new ArrayList<Item>(list.size());
+			for (PostItData data : list) {
+				if (data.getTimerPattern() == null) continue;
+				if (!mAgenda || !data.isTimerIsRepeat()) {
+					items.add(new Item(data, data.getTimer()));
+					continue;
+				}
+				TimerPattern pattern = TimerPattern.valueOf(data.getTimerCode());
+				int n = pattern.getTimes(now, end, tz, mTimes);
+				for (int i = 0; i < n; i++) {
+					items.add(new Item(data, mTimes[i]));
+				}
+				if (n == 0) items.add(new Item(data, data.getTimer()));
 			}
-			Collections.sort(list, new Comparator<PostItData>() {
+			Collections.sort(items, new Comparator<Item>() {
 				@Override
-				public int compare(PostItData lhs, PostItData rhs) {
-					return lhs.getTimer() > rhs.getTimer() ? 1 : -1;
+				public int compare(Item lhs, Item rhs) {
+					return lhs.mTime < rhs.mTime ? -1 : (lhs.mTime == rhs.mTime ? 0 : 1);
 				}
 			});
-			mList = list;
+			mList = items;
+			notifyDataSetChanged();
+		}
+
+		public void remove(int position) {
+			if (mList == null) return;
+			mList.remove(position);
 			notifyDataSetChanged();
 		}
 
@@ -129,7 +253,7 @@ public class AlarmListActivity extends Activity {
 		}
 		public PostItData getPostItData(int position) {
 			if (mList == null) return null;
-			return mList.get(position);
+			return mList.get(position).mData;
 		}
 		@Override
 		public long getItemId(int position) {
@@ -144,13 +268,14 @@ public class AlarmListActivity extends Activity {
 				view.setTag(tag);
 			}
 			Context context = getBaseContext();
-			PostItData data = getPostItData(position);
-			if (data == null) return view;
+			if (mList == null) return view;
+			Item item = mList.get(position);
+			PostItData data = item.mData;
 			AlarmListItemViews tag = (AlarmListItemViews) view.getTag();
-			String dateTime = mTimerPattern.fromTime(data.getTimer()).toLocaleString(context, false);
+			String dateTime = mTimerPattern.fromTime(item.mTime).toLocaleString(context, false);
 			tag.mDate.setText(dateTime.substring(0, dateTime.length() - 6));
 			tag.mTime.setText(dateTime.substring(dateTime.length() - 5));
-			tag.mMemo.setText(data.getMemo());
+			tag.mMemo.setText(data.getMemoPreview());
 			tag.mMemo.setBackgroundResource(PostItView.sColorResourceMap.getFirst(data.getColor()));
 			int pad = Util.dp2px(context, 2);
 			tag.mMemo.setPadding(pad, 0, pad, 0);
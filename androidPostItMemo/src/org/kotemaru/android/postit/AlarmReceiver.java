@@ -1,8 +1,6 @@
 // Copyright (c) kotemaru.org  (APL/2.0)
 package org.kotemaru.android.postit;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -11,16 +9,14 @@ import android.media.RingtoneManager;
 import android.net.Uri;
 import android.util.Log;
 
+import org.kotemaru.android.postit.data.AlarmScheduler;
 import org.kotemaru.android.postit.data.PostItData;
+import org.kotemaru.android.postit.data.PostItDataAsync;
 import org.kotemaru.android.postit.data.PostItDataProvider;
 import org.kotemaru.android.postit.util.Launcher;
 import org.kotemaru.android.postit.widget.PostItView;
 
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
-import java.util.Iterator;
-import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * 付箋タイマーを受信するレシーバ。
@@ -29,67 +25,78 @@ public class AlarmReceiver extends BroadcastReceiver {
 
 	private static final String TAG = AlarmReceiver.class.getSimpleName();
 
-	public static void setAlarm(Context context, long time, String action) {
-		Log.d(TAG, "setAlarm:" + new Date(time) + ":" + action);
-		AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-		Intent intent = new Intent(context, AlarmReceiver.class);
-		intent.setAction(action);
-		PendingIntent pi = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_ONE_SHOT);
-		am.cancel(pi);
-		am.set(AlarmManager.RTC_WAKEUP, time, pi);
-	}
-
 	/**
 	 * 最新のタイマーを設定する。
 	 * <li>非表示の付箋から一番最近に発火するタイマーを設定する。</li>
+	 * <li>AlarmScheduler が構築済みならDBは読まず、一番早い発火時刻が変わった時だけ設定する。</li>
+	 * <li>未構築ならDBの検索はDBスレッドで行う。</li>
 	 * @param context
 	 */
 	public static void setAlarm(Context context) {
-		List<PostItData> list = PostItDataProvider.getAllPostItData(context);
-		Iterator<PostItData> ite = list.iterator();
-		while (ite.hasNext()) {
-			PostItData data = ite.next();
-			if (data.isEnabled() || data.getTimerPattern() == null) ite.remove();
-		}
-		// Log.d(TAG, "setAlarm:list=" + list);
-		if (list.isEmpty()) return;
-
-		Collections.sort(list, new Comparator<PostItData>() {
+		final Context appContext = context.getApplicationContext();
+		if (AlarmScheduler.getInstance().reprogram(appContext)) return;
+		PostItDataAsync.getNextTimerPostItData(appContext, new PostItDataAsync.Callback<PostItData>() {
 			@Override
-			public int compare(PostItData lhs, PostItData rhs) {
-				return lhs.getTimer() > rhs.getTimer() ? 1 : -1;
+			public void onResult(PostItData data) {
+				if (data == null) return;
+				AlarmScheduler.getInstance().setAlarm(appContext, data.getTimer());
 			}
 		});
-		// for (int i = 0; i < list.size(); i++) {
-		// Log.d(TAG, "-->" + i + "=" + new Date(list.get(i).getTimer()) + ":" + list.get(i).getTimerPattern());
-		// }
-
-		setAlarm(context, list.get(0).getTimer(), Launcher.ACTION_CHANGE_DATA);
 	}
 
 	/**
 	 * タイマーの発火を受信して付箋の状態を更新する。
 	 * <li>次のタイマーを設定する。</li>
 	 * <li>再起動時には次のタイマーの設定のみ行う。</li>
+	 * <li>AlarmScheduler が未構築(コールドスタート)の時だけ全付箋を読み込んで構築する。</li>
+	 * <li>現在時刻から設定のまとめ時間幅内に発火するタイマーも１回のUPDATEでまとめて有効にする。通知音も１回。</li>
+	 * <li>次のアラームはまとめて有効にしたタイマーより後の一番早い発火時刻に設定する。</li>
 	 * @param context
 	 * @param intent
 	 */
 	@Override
 	public void onReceive(Context context, Intent intent) {
+		final Context appContext = context.getApplicationContext();
 		String action = intent.getAction();
 		Log.d(TAG, "onReceive:" + action);
+		final boolean isTimer = Launcher.ACTION_CHANGE_DATA.equals(action);
 		if (Launcher.ACTION_CHANGE_SETTENGS.equals(action)) {
+			AlarmScheduler.getInstance().reloadSettings(appContext);
 			Launcher.notifyChangeSettings(context);
-		} else if (Launcher.ACTION_CHANGE_DATA.equals(action)) {
+		} else if (isTimer) {
 			ringtone(context);
-			PostItDataProvider.updateTimer(context, System.currentTimeMillis());
-			Launcher.notifyChangeData(context);
 		} else if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
 			// nop.
 		} else if (Intent.ACTION_PACKAGE_REPLACED.equals(action)) {
 			// nop.
 		}
-		setAlarm(context);
+
+		// DB操作はDBスレッドで行う。
+		final PendingResult pendingResult = goAsync();
+		PostItDataAsync.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				try {
+					// 有効にした付箋は Provider の変更通知で壁紙に反映される。
+					long now = System.currentTimeMillis();
+					AlarmScheduler scheduler = AlarmScheduler.getInstance();
+					if (!scheduler.isLoaded()) {
+						// コールドスタート。読み込み時に AlarmScheduler も構築される。
+						PostItDataProvider.getPostItDataMap(appContext, 0);
+					}
+					long window = scheduler.getAlarmWindow(appContext);
+					PostItDataProvider.updateTimer(appContext, now + window);
+					// 発火直後は時刻の丸めで先頭が変わらない事が有るので設定し直す。
+					if (!scheduler.reprogram(appContext, isTimer)) {
+						PostItData data = PostItDataProvider.getNextTimerPostItData(appContext);
+						if (data != null) scheduler.setAlarm(appContext, data.getTimer());
+					}
+				} finally {
+					pendingResult.finish();
+				}
+				return null;
+			}
+		}, null);
 	}
 
 	private void ringtone(Context context) {
@@ -5,7 +5,7 @@ import org.kotemaru.android.postit.PostItConst.PostItFontSize;
 import org.kotemaru.android.postit.PostItConst.PostItShape;
 import org.kotemaru.android.postit.data.TimerPattern;
 import org.kotemaru.android.postit.data.PostItData;
-import org.kotemaru.android.postit.data.PostItDataProvider;
+import org.kotemaru.android.postit.data.PostItDataAsync;
 import org.kotemaru.android.postit.dialog.DatetimePickerDialogFragment;
 import org.kotemaru.android.postit.layout.PostItSettingActivityViews;
 import org.kotemaru.android.postit.util.IntIntMap;
@@ -13,6 +13,7 @@ import org.kotemaru.android.postit.util.Launcher;
 import org.kotemaru.android.postit.widget.RadioLayout;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.util.Log;
@@ -20,6 +21,7 @@ import android.view.View;
 import android.widget.EditText;
 import android.widget.RadioGroup;
 import android.widget.TextView;
+import android.widget.Toast;
 
 /**
  * 付箋データの編集画面。
@@ -57,30 +59,46 @@ public class PostItSettingActivity extends Activity
 	private PostItData mPostItData;
 	private PostItSettingActivityViews mViews;
 	private TimerPattern mTimerPattern;
+	private boolean mIsResumed;
 
 	/**
 	 * intetntパラメータ
 	 * <li>| POST_IT_ID | long型 | 必須 | 付箋ID。|
+	 * <li>付箋データはDBスレッドで読み込み、読み込み後にViewに反映する。
 	 */
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.post_it_setting_activity);
+		mViews = new PostItSettingActivityViews(this);
 
 		Intent intent = getIntent();
 		long postItId = intent.getLongExtra(Launcher.POST_IT_ID, -1);
-		mPostItData = PostItDataProvider.getPostItData(this, postItId);
-
-		mViews = new PostItSettingActivityViews(this);
+		PostItDataAsync.getPostItData(this, postItId, new PostItDataAsync.Callback<PostItData>() {
+			@Override
+			public void onResult(PostItData data) {
+				if (data == null) {
+					Toast.makeText(PostItSettingActivity.this, R.string.msg_data_error, Toast.LENGTH_SHORT).show();
+					finish();
+					return;
+				}
+				mPostItData = data;
+				if (mIsResumed) restoreViews();
+			}
+		});
 	}
 
-	/**
-	 * 付箋データから各Viewの値を設定。
-	 */
 	@Override
 	public void onResume() {
 		super.onResume();
+		mIsResumed = true;
+		if (mPostItData != null) restoreViews();
+	}
 
+	/**
+	 * 付箋データから各Viewの値を設定。
+	 */
+	private void restoreViews() {
 		// restore settings.
 		mViews.mMemo.setText(mPostItData.getMemo());
 		mViews.mShapeRadioGroup.check(sShapeRadioMap.getFirst(mPostItData.getWidth(), mPostItData.getHeight()));
@@ -88,7 +106,7 @@ public class PostItSettingActivity extends Activity
 		mViews.mColorRadioGroup.check(sColorRadioMap.getFirst(mPostItData.getColor()));
 		mViews.mTimerRepeatable.setSelected(mPostItData.isTimerIsRepeat());
 
-		setTimerPattern(TimerPattern.create(mPostItData.getTimerPattern()));
+		setTimerPattern(TimerPattern.valueOf(mPostItData.getTimerCode()));
 	}
 
 	/**
@@ -96,6 +114,11 @@ public class PostItSettingActivity extends Activity
 	 */
 	@Override
 	public void onPause() {
+		mIsResumed = false;
+		if (mPostItData == null) {
+			super.onPause();
+			return;
+		}
 		// save settings.
 		mPostItData.setMemo(mViews.mMemo.getText().toString());
 
@@ -124,17 +147,20 @@ public class PostItSettingActivity extends Activity
 			mPostItData.setEnabled(true);
 		}
 
-		// DBに保存
-		PostItDataProvider.updatePostItData(this, mPostItData);
-		Launcher.notifyChangeData(this);
-
-		if (mTimerPattern.isValid()) {
-			AlarmReceiver.setAlarm(this);
-		}
+		// DBに保存。壁紙への反映は Provider の変更通知で行われる。
+		final Context context = getApplicationContext();
+		final boolean hasTimer = mTimerPattern.isValid();
+		PostItDataAsync.updatePostItData(this, mPostItData, new PostItDataAsync.Callback<Boolean>() {
+			@Override
+			public void onResult(Boolean isUpdated) {
+				if (Boolean.TRUE.equals(isUpdated) && hasTimer) AlarmReceiver.setAlarm(context);
+			}
+		});
 		super.onPause();
 	}
 
 	public void onClickTimerSetting(View view) {
+		if (mTimerPattern == null) return;
 		DatetimePickerDialogFragment.show(this, mTimerPattern);
 	}
 
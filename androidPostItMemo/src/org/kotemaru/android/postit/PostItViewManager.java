@@ -1,11 +1,12 @@
 package org.kotemaru.android.postit;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 import org.kotemaru.android.postit.data.PostItData;
-import org.kotemaru.android.postit.data.PostItDataProvider;
+import org.kotemaru.android.postit.data.PostItDataAsync;
+import org.kotemaru.android.postit.data.PostItDataCache;
+import org.kotemaru.android.postit.data.PostItDataChanges;
 import org.kotemaru.android.postit.util.Util;
 import org.kotemaru.android.postit.widget.PostItView;
 
@@ -28,11 +29,16 @@ public class PostItViewManager {
 	private WindowManager mWindowManager;
 	private LayoutInflater mLayoutInflater;
 
-	/**
-	 * 付箋Viewの一覧。
-	 * <li>１０件程度を想定するのでマップにはしない。
-	 */
+	/** 付箋Viewの一覧。 */
 	private List<PostItView> mPostItViewList = new ArrayList<PostItView>();
+	/** 付箋IDをキーとする付箋View。差分同期で変更のあった付箋Viewだけを引くためのもの。 */
+	private LongSparseArray<PostItView> mPostItViewMap = new LongSparseArray<PostItView>();
+	/** 前回同期した時のキャッシュの世代番号。 */
+	private long mSyncedGeneration = -1;
+	/** 前回同期した時の付箋データのリビジョン。 */
+	private long mSyncedRevision = 0;
+	/** 壁紙に描く付箋の描画内容の版数。付箋の内容、位置、付箋の増減で進む。 */
+	private int mDrawVersion = 0;
 
 	public PostItViewManager(PostItWallpaper context) {
 		mPostItWallpaper = context;
@@ -66,48 +72,102 @@ public class PostItViewManager {
 		return mPostItViewList;
 	}
 
+	/**
+	 * @return 壁紙に描く付箋の描画内容の版数。変わっていなければ前回描いた付箋の画像を使い回せる。
+	 */
+	public int getDrawVersion() {
+		return mDrawVersion;
+	}
+
+	/**
+	 * 壁紙に描く付箋の描画内容が変わった事を通知する。
+	 */
+	public void invalidateDrawing() {
+		mDrawVersion++;
+	}
+
 	/**
 	 * ID指定して付箋Viewの取得
 	 * @param id 付箋ID
 	 * @return 付箋View。見つからなければnull。
 	 */
 	public PostItView getPostItViewFromId(long id) {
-		for (PostItView postItView : mPostItViewList) {
-			if (postItView.getPostItId() == id) return postItView;
-		}
-		return null;
+		return mPostItViewMap.get(id);
 	}
 
 	/**
 	 * 付箋Viewの同期。
 	 * <li>DBの付箋データと表示を同期させる。
 	 * <li>付箋の作成、削除にも対応する。
+	 * <li>前回の同期以降に変更された付箋のみを読み込み、対応する付箋Viewだけを更新する。
+	 * <li>DBの読み込みはDBスレッドで行い、Viewの更新はメインスレッドで行う。
+	 * <li>前回の同期からキャッシュに変更が無く、有効にすべきタイマーも無ければ何もしない。
+	 * <li>DBの読み込みに失敗した場合は表示を変えず、次回の同期で読み直す。
+	 * @param onSynced 同期完了時の処理。null可。
 	 */
-	public void syncPostItDataProvider() {
-		LongSparseArray<PostItData> providerAllDataMap = PostItDataProvider.getPostItDataMap(mPostItWallpaper,
-				System.currentTimeMillis());
-		Iterator<PostItView> ite = mPostItViewList.iterator();
-		// 既存付箋Viewの更新と削除
-		while (ite.hasNext()) {
-			PostItView postItView = ite.next();
-			long id = postItView.getPostItId();
-			PostItData providerData = providerAllDataMap.get(id);
-			if (providerData != null) {
-				updatePostItView(postItView, providerData);
-				providerAllDataMap.remove(id);
+	public void syncPostItDataProvider(final Runnable onSynced) {
+		long curTime = System.currentTimeMillis();
+		PostItDataCache cache = PostItDataCache.getInstance();
+		final long generation = cache.getGeneration();
+		if (cache.isLoaded() && generation == mSyncedGeneration && !cache.hasExpiredTimer(curTime)) {
+			if (onSynced != null) onSynced.run();
+			return;
+		}
+		PostItDataAsync.getPostItDataChanges(mPostItWallpaper, curTime, mSyncedRevision,
+				new PostItDataAsync.Callback<PostItDataChanges>() {
+					@Override
+					public void onResult(PostItDataChanges changes) {
+						if (changes != null) {
+							applyPostItDataChanges(changes);
+							mSyncedGeneration = generation;
+						}
+						if (onSynced != null) onSynced.run();
+					}
+				});
+	}
+
+	/**
+	 * DBから読み込んだ付箋データの差分を付箋Viewに反映する。
+	 * @param changes 前回の同期以降の差分
+	 */
+	private void applyPostItDataChanges(PostItDataChanges changes) {
+		if (changes.getRevision() <= mSyncedRevision) return;
+		mSyncedRevision = changes.getRevision();
+		invalidateDrawing();
+
+		// 削除
+		LongSparseArray<Long> removed = changes.getRemoved();
+		for (int i = 0; i < removed.size(); i++) {
+			PostItView postItView = mPostItViewMap.get(removed.keyAt(i));
+			if (postItView == null) continue;
+			removePostItView(postItView);
+			mPostItViewMap.remove(removed.keyAt(i));
+			mPostItViewList.remove(postItView);
+		}
+
+		// 更新と新規作成
+		LongSparseArray<PostItData> updated = changes.getUpdated();
+		for (int i = 0; i < updated.size(); i++) {
+			PostItData data = updated.valueAt(i);
+			PostItView postItView = mPostItViewMap.get(data.getId());
+			if (postItView != null) {
+				updatePostItView(postItView, data);
 			} else {
-				removePostItView(postItView);
-				ite.remove();
+				postItView = createPostItView(data);
+				mPostItViewMap.put(data.getId(), postItView);
+				mPostItViewList.add(postItView);
 			}
 		}
+	}
 
-		// 新規付箋Viewの作成
-		for (int i = 0; i < providerAllDataMap.size(); i++) {
-			long id = providerAllDataMap.keyAt(i);
-			PostItData data = providerAllDataMap.get(id);
-			PostItView postItView = createPostItView(data);
-			mPostItViewList.add(postItView);
-		}
+	/**
+	 * 付箋Viewのレイアウト完了の通知。
+	 * <li>壁紙側の付箋は付箋Viewから描画するのでレイアウト後に描き直す。
+	 * @param postItView
+	 */
+	public void onPostItViewLayout(PostItView postItView) {
+		invalidateDrawing();
+		mPostItWallpaper.requestDrawFrame();
 	}
 
 	/**
@@ -1,16 +1,26 @@
 package org.kotemaru.android.postit;
 
+import java.io.File;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+import org.kotemaru.android.postit.data.AlarmScheduler;
 import org.kotemaru.android.postit.data.PostItData;
+import org.kotemaru.android.postit.data.PostItDataAsync;
 import org.kotemaru.android.postit.data.PostItDataProvider;
 import org.kotemaru.android.postit.data.Settings;
+import org.kotemaru.android.postit.util.BitmapDiskCache;
+import org.kotemaru.android.postit.util.BitmapLoader;
 import org.kotemaru.android.postit.util.Launcher;
 import org.kotemaru.android.postit.util.Util;
 import org.kotemaru.android.postit.widget.PostItTray;
 import org.kotemaru.android.postit.widget.PostItView;
 
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
@@ -25,9 +35,12 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Process;
 import android.service.wallpaper.WallpaperService;
+import android.support.v4.util.LruCache;
 import android.util.Log;
 import android.view.SurfaceHolder;
+import android.widget.Toast;
 
 /**
  * Live壁紙のサービス。
@@ -37,6 +50,8 @@ import android.view.SurfaceHolder;
  */
 public class PostItWallpaper extends WallpaperService {
 	private static final String TAG = PostItWallpaper.class.getSimpleName();
+	/** 付箋データの変更通知をまとめる待ち時間(ms)。 */
+	private static final long CHANGE_DEBOUNCE = 100;
 
 	/** ステータスバーの高さ。サイズ補正用 */
 	private int mStatusBarHeight;
@@ -50,6 +65,23 @@ public class PostItWallpaper extends WallpaperService {
 	private Settings mSettings;
 	private DrawEngine mEngine;
 	private Handler mUiHandler;
+	private ContentObserver mDataObserver;
+
+	/** 付箋データの変更時の再描画。変更通知が続いた場合は最後の通知の後に１回だけ実行する。 */
+	private final Runnable mRefreshTask = new Runnable() {
+		@Override
+		public void run() {
+			update();
+		}
+	};
+	/** 付箋Viewのレイアウト後の壁紙の再描画。 */
+	private final Runnable mDrawTask = new Runnable() {
+		@Override
+		public void run() {
+			if (mEngine == null || !mEngine.mVisible) return;
+			mEngine.drawFrame();
+		}
+	};
 
 	@Override
 	public void onCreate() {
@@ -63,6 +95,16 @@ public class PostItWallpaper extends WallpaperService {
 		mSettings = new Settings(this).load();
 		mUiHandler = new Handler(Looper.getMainLooper());
 
+		// 付箋データの変更はDBのコミット後に通知される。個別の付箋の変更も受けるため子孫URIも対象にする。
+		mDataObserver = new ContentObserver(mUiHandler) {
+			@Override
+			public void onChange(boolean selfChange) {
+				mUiHandler.removeCallbacks(mRefreshTask);
+				mUiHandler.postDelayed(mRefreshTask, CHANGE_DEBOUNCE);
+			}
+		};
+		getContentResolver().registerContentObserver(PostItDataProvider.CONTENT_URI, true, mDataObserver);
+
 		mPostItTray.hide();
 	}
 
@@ -79,20 +121,19 @@ public class PostItWallpaper extends WallpaperService {
 		Log.d(TAG, "onStartCommand:" + action);
 		if (Launcher.ACTION_CHANGE_SETTENGS.equals(action)) {
 			mSettings.load();
+			AlarmScheduler.getInstance().reloadSettings(this);
+			if (mEngine != null) mEngine.invalidateBackground();
 			update();
-		} else if (Launcher.ACTION_CHANGE_DATA.equals(action)) {
-			mUiHandler.postDelayed(new Runnable() {
-				@Override
-				public void run() {
-					update();
-				}
-			}, 1000); // TODO: タイミング依存でバグる。確実にPostitViewの描画後にupdateしたい。
 		}
 		return super.onStartCommand(intent, flags, startId);
 	}
 
 	@Override
 	public void onDestroy() {
+		getContentResolver().unregisterContentObserver(mDataObserver);
+		mUiHandler.removeCallbacks(mRefreshTask);
+		mUiHandler.removeCallbacks(mDrawTask);
+		PostItDataProvider.flushPostItData(this);
 		super.onDestroy();
 	}
 
@@ -104,25 +145,49 @@ public class PostItWallpaper extends WallpaperService {
 
 	/**
 	 * 付箋データの新規作成。
-	 * <li>DBに付箋を新規作成してViewも作成して返す。
+	 * <li>DBに付箋を新規作成してViewも作成してコールバックする。
+	 * <li>DBへの作成に失敗した場合はメッセージを表示して null でコールバックする。
 	 * @param data 初期データ。IDは無視。
-	 * @return 付箋View
+	 * @param callback 作成された付箋Viewを受け取るコールバック。
 	 */
-	public PostItView createPostIt(PostItData data) {
-		long id = PostItDataProvider.createPostItData(this, data);
-		mPostItViewManager.syncPostItDataProvider();
-		PostItView view = mPostItViewManager.getPostItViewFromId(id);
-		return view;
+	public void createPostIt(PostItData data, final PostItDataAsync.Callback<PostItView> callback) {
+		PostItDataAsync.createPostItData(this, data, new PostItDataAsync.Callback<Long>() {
+			@Override
+			public void onResult(final Long id) {
+				if (id == null) {
+					Toast.makeText(PostItWallpaper.this, R.string.msg_data_error, Toast.LENGTH_SHORT).show();
+					callback.onResult(null);
+					return;
+				}
+				mPostItViewManager.syncPostItDataProvider(new Runnable() {
+					@Override
+					public void run() {
+						callback.onResult(mPostItViewManager.getPostItViewFromId(id));
+					}
+				});
+			}
+		});
 	}
 
 	/**
 	 * 壁紙の再描画。
+	 * <li>付箋の移動やゴミ箱行きの後に呼ばれるので付箋の描画内容も描き直す。
 	 */
 	public void update() {
+		mPostItViewManager.invalidateDrawing();
 		if (mEngine == null) return;
 		mEngine.update();
 	}
 
+	/**
+	 * 壁紙の描画のみを行う。付箋Viewのレイアウト完了時に呼ばれる。
+	 * <li>続けて呼ばれた場合も描画は１回にまとめる。
+	 */
+	public void requestDrawFrame() {
+		mUiHandler.removeCallbacks(mDrawTask);
+		mUiHandler.post(mDrawTask);
+	}
+
 	/**
 	 * 付箋の表示場所の設定。
 	 * @param b true=上位レイヤ、false=壁紙
@@ -164,18 +229,89 @@ public class PostItWallpaper extends WallpaperService {
 	 */
 	private class DrawEngine extends Engine {
 		private static final int ALPHA = (int) (255 * 0.7);
+		/** 背景Bitmapのキャッシュ数。昼と夜の２枚。 */
+		private static final int BACKGROUND_CACHE_SIZE = 2;
+		/** 加工済み背景画像のディスクキャッシュの上限(byte)。 */
+		private static final long BACKGROUND_DISK_CACHE_SIZE = 24 * 1024 * 1024;
+		/** 背景画像の読み込み完了前に表示する色。 */
+		private static final int BACKGROUND_PLACEHOLDER = 0xFF303030;
 
 		private final Paint mPaint = new Paint();
 		/** 現在の表示状態 */
 		private boolean mVisible;
-		/** 現在の背景URI */
-		private String mBackgroundUri = null;
+		/** 現在の背景のキャッシュキー */
+		private String mBackgroundKey = null;
 		/** 現在の背景Bitmap */
 		private Bitmap mBackground = null;
+		/** 背景Bitmapのキャッシュ。キーは URI、サイズ、画面の向き。 */
+		private final LruCache<String, Bitmap> mBackgroundCache = new LruCache<String, Bitmap>(BACKGROUND_CACHE_SIZE);
+		/** 背景Bitmapのサイズ。nullなら次の描画時に求める。 */
+		private Point mBackgroundSize = null;
+		/** 読み込み中の背景のキャッシュキー。読み込み中で無ければnull。 */
+		private String mLoadingKey = null;
+		/** 読み込み中の背景のFuture。 */
+		private Future<?> mLoadingFuture = null;
+		/** 背景画像の読み込み。背景は不透明なので RGB_565 で読む。読み込み用スレッドからのみ使う。 */
+		private final BitmapLoader mBitmapLoader = new BitmapLoader().setOpaqueConfig(Bitmap.Config.RGB_565);
+		/** 加工済み背景画像のディスクキャッシュ。読み込み用スレッドからのみ使う。 */
+		private final BitmapDiskCache mDiskCache = new BitmapDiskCache(
+				new File(getCacheDir(), "background"), BACKGROUND_DISK_CACHE_SIZE);
+		/** 背景画像の読み込み用スレッド。 */
+		private final ExecutorService mDecodeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						runnable.run();
+					}
+				}, "PostItBackground");
+			}
+		});
+		/** 現在のSurfaceのサイズ */
+		private int mSurfaceWidth = -1;
+		private int mSurfaceHeight = -1;
+		/** 壁紙に描く付箋を描画済みのBitmap。透過色で初期化し、付箋だけを描く。 */
+		private Bitmap mNoteLayer = null;
+		/** mNoteLayer を描いた時の付箋の描画内容の版数。 */
+		private int mNoteLayerVersion = -1;
+		/** true=mNoteLayer に何も描かれていない。 */
+		private boolean mIsNoteLayerEmpty = true;
+		private final Paint mNoteLayerPaint = new Paint();
 		/** ダブルタップ検知用タイムスタンプ */
 		private long mLastTapTime = -1;
 
+		/** 付箋Viewの同期完了時の処理。同期中に非表示になっていれば付箋も非表示にする。 */
+		private final Runnable mOnSynced = new Runnable() {
+			@Override
+			public void run() {
+				if (mVisible) {
+					mPostItViewManager.show(mIsRaisePostIt);
+					drawFrame();
+				} else {
+					mPostItViewManager.show(false);
+				}
+			}
+		};
+
 		DrawEngine() {
+			mNoteLayerPaint.setAlpha(ALPHA);
+		}
+
+		@Override
+		public void onDestroy() {
+			cancelLoading();
+			mDecodeExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					mBitmapLoader.releaseReusable();
+				}
+			});
+			mDecodeExecutor.shutdown();
+			if (mNoteLayer != null) mNoteLayer.recycle();
+			mNoteLayer = null;
+			super.onDestroy();
 		}
 
 		public void update() {
@@ -193,28 +329,47 @@ public class PostItWallpaper extends WallpaperService {
 		public void onVisibilityChanged(boolean visible) {
 			mVisible = visible;
 			if (visible) {
-				mPostItViewManager.syncPostItDataProvider();
 				mPostItViewManager.show(mIsRaisePostIt);
 				drawFrame();
+				mPostItViewManager.syncPostItDataProvider(mOnSynced);
 			} else {
 				mPostItViewManager.show(false);
+				PostItDataProvider.flushPostItData(PostItWallpaper.this);
 			}
 		}
 
 		@Override
 		public void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height) {
 			super.onSurfaceChanged(holder, format, width, height);
-			mBackgroundUri = null;
+			if (width != mSurfaceWidth || height != mSurfaceHeight) {
+				mSurfaceWidth = width;
+				mSurfaceHeight = height;
+				invalidateBackground();
+			}
 			drawFrame();
 		}
 
+		/**
+		 * ホーム画面のページ切り替え。
+		 * <li>背景は画面に固定なので描き直すだけで、画像は読み込み直さない。
+		 */
 		@Override
 		public void onOffsetsChanged(float xOffset, float yOffset,
 				float xStep, float yStep, int xPixels, int yPixels) {
-			mBackgroundUri = null;
 			drawFrame();
 		}
 
+		/**
+		 * 背景Bitmapのキャッシュを破棄する。画面サイズか設定が変わった時に呼ぶ。
+		 * <li>新しい背景の読み込みが終わるまでは現在の背景を表示し続ける。
+		 */
+		public void invalidateBackground() {
+			cancelLoading();
+			mBackgroundKey = null;
+			mBackgroundSize = null;
+			mBackgroundCache.evictAll();
+		}
+
 		/**
 		 * タップされたら付箋トレイを表示する。
 		 * <li>4.4.4ではバグが有りホームアプリのアイコンをタップしてもここが呼ばれてしまう。
@@ -241,6 +396,7 @@ public class PostItWallpaper extends WallpaperService {
 		 * 壁紙の描画。
 		 * <li>壁紙はステータスバーとナビゲーションバーを含まない領域に描画する。
 		 * <li>付箋が壁紙描画になっていれば付箋を半透明で上書きする。
+		 * <li>付箋は描画済みのBitmapを使うので、背景と付箋のBitmapを２回描くだけとなる。
 		 */
 		private void drawFrame() {
 			final SurfaceHolder holder = getSurfaceHolder();
@@ -251,29 +407,61 @@ public class PostItWallpaper extends WallpaperService {
 				if (canvas != null) {
 					// 初期化
 					canvas.drawColor(0, Mode.CLEAR);
-					canvas.saveLayerAlpha(0, 0, canvas.getWidth(), canvas.getHeight(), 255, Canvas.HAS_ALPHA_LAYER_SAVE_FLAG);
 					canvas.translate(0.0F, (float) mStatusBarHeight);
 					// 背景画像の描画
 					Bitmap bgBitmap = getBackgroundBitmap();
 					if (bgBitmap != null) {
 						int rx = (bgBitmap.getWidth() - canvas.getWidth()) / 2;
 						canvas.drawBitmap(bgBitmap, -rx, 0, mPaint);
+					} else {
+						canvas.drawColor(BACKGROUND_PLACEHOLDER);
 					}
 					// 付箋の描画。半透明。
-					canvas.saveLayerAlpha(0, 0, canvas.getWidth(), canvas.getHeight(), ALPHA, Canvas.HAS_ALPHA_LAYER_SAVE_FLAG);
-					// if (!mIsRaisePostIt) { // 常に背景にも表示
-					List<PostItView> list = mPostItViewManager.getPostItViewList();
-					for (PostItView view : list) {
-						drawPostItView(canvas, view);
-					}
-					// }
-					if (isPreview()) drawPreview(canvas);
+					Bitmap noteLayer = getNoteLayer(canvas.getWidth(), canvas.getHeight() - mStatusBarHeight);
+					if (!mIsNoteLayerEmpty) canvas.drawBitmap(noteLayer, 0, 0, mNoteLayerPaint);
 				}
 			} finally {
 				if (canvas != null) holder.unlockCanvasAndPost(canvas);
 			}
 		}
 
+		/**
+		 * 壁紙に描く付箋のBitmapの取得。
+		 * <li>付箋の描画内容の版数かサイズが変わった時だけ描き直す。
+		 * <li>付箋は不透明で描き、半透明にするのは壁紙に描く時。
+		 * @param width 幅
+		 * @param height 高さ
+		 * @return 付箋を描画済みのBitmap
+		 */
+		private Bitmap getNoteLayer(int width, int height) {
+			width = Math.max(width, 1);
+			height = Math.max(height, 1);
+			int version = mPostItViewManager.getDrawVersion();
+			if (mNoteLayer != null && mNoteLayer.getWidth() == width && mNoteLayer.getHeight() == height) {
+				if (version == mNoteLayerVersion) return mNoteLayer;
+				mNoteLayer.eraseColor(0);
+			} else {
+				if (mNoteLayer != null) mNoteLayer.recycle();
+				mNoteLayer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			}
+			mNoteLayerVersion = version;
+
+			Canvas canvas = new Canvas(mNoteLayer);
+			boolean isEmpty = true;
+			// if (!mIsRaisePostIt) { // 常に背景にも表示
+			List<PostItView> list = mPostItViewManager.getPostItViewList();
+			for (PostItView view : list) {
+				if (drawPostItView(canvas, view)) isEmpty = false;
+			}
+			// }
+			if (isPreview()) {
+				drawPreview(canvas);
+				isEmpty = false;
+			}
+			mIsNoteLayerEmpty = isEmpty;
+			return mNoteLayer;
+		}
+
 		private void drawPreview(Canvas canvas) {
 			int save = canvas.save();
 			float x = canvas.getWidth() / 2;
@@ -293,65 +481,128 @@ public class PostItWallpaper extends WallpaperService {
 		 * 壁紙へ付箋を描画する。
 		 * @param canvas 壁紙用Canvas
 		 * @param postItView 付箋
+		 * @return true=描画した。
 		 */
-		private void drawPostItView(Canvas canvas, PostItView postItView) {
+		private boolean drawPostItView(Canvas canvas, PostItView postItView) {
 			PostItData data = postItView.getPostItData();
-			if (data.isEnabled()) {
-				int save = canvas.save();
-				canvas.translate((float) data.getPosX(), (float) data.getPosY());
-				postItView.draw(canvas);
-				canvas.restoreToCount(save);
-			}
+			if (!data.isEnabled()) return false;
+			int save = canvas.save();
+			canvas.translate((float) data.getPosX(), (float) data.getPosY());
+			postItView.draw(canvas);
+			canvas.restoreToCount(save);
+			return true;
 		}
 
 		/**
 		 * 背景画像の取得。
-		 * <li>背景は時間で変わるので背景URIが変更になったら画像を読み込み直す。
-		 * <li>画像はアスペクト比をそのままでかつ画面サイズピッタリになるように補正したものを返す。
-		 * <li>背景画像未設定の場合はシステムのデフォルト。
-		 * @return 背景画像
+		 * <li>背景は時間で変わるので背景URIが変更になったら画像を切り替える。
+		 * <li>読み込んだ画像は URI、サイズ、画面の向きをキーにキャッシュし、昼夜の切り替えでも読み込み直さない。
+		 * <li>キャッシュに無ければ読み込み用スレッドで読み込み、終わるまでは前の背景を返す。
+		 * <li>読み込みに失敗した場合もキーが変わるまでは読み込み直さない。
+		 * @return 背景画像。null有り。
 		 */
 		private Bitmap getBackgroundBitmap() {
 			String uri = mSettings.getBackgroundUri(System.currentTimeMillis());
-			if (uri != null && uri.equals(mBackgroundUri)) {
+			if (mBackgroundSize == null) {
+				mBackgroundSize = Util.getDisplaySize(PostItWallpaper.this);
+				mBackgroundSize.y -= mStatusBarHeight;
+			}
+			int orientation = getResources().getConfiguration().orientation;
+			String key = uri + '|' + mBackgroundSize.x + 'x' + mBackgroundSize.y + '|' + orientation;
+			if (key.equals(mBackgroundKey) || key.equals(mLoadingKey)) {
+				return mBackground;
+			}
+
+			Bitmap cached = mBackgroundCache.get(key);
+			if (cached != null) {
+				cancelLoading();
+				mBackgroundKey = key;
+				mBackground = cached;
 				return mBackground;
 			}
-			mBackgroundUri = uri;
+			startLoading(key, uri, new Point(mBackgroundSize));
+			return mBackground;
+		}
+
+		/**
+		 * 背景画像の読み込みを開始する。
+		 * <li>読み込み中の背景が有れば取り消す。昼夜の切り替わりで不要になった読み込みを残さないため。
+		 * @param key キャッシュキー
+		 * @param uri 背景画像のURI。null可。
+		 * @param size 画面サイズ
+		 */
+		private void startLoading(final String key, final String uri, final Point size) {
+			cancelLoading();
+			mLoadingKey = key;
+			mLoadingFuture = mDecodeExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+					final Bitmap bitmap = loadBackgroundBitmap(uri, size);
+					if (Thread.currentThread().isInterrupted()) return;
+					mUiHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							onBackgroundLoaded(key, bitmap);
+						}
+					});
+				}
+			});
+		}
+
+		/**
+		 * 読み込み中の背景画像の取り消し。
+		 */
+		private void cancelLoading() {
+			if (mLoadingFuture != null) mLoadingFuture.cancel(true);
+			mLoadingFuture = null;
+			mLoadingKey = null;
+		}
+
+		/**
+		 * 背景画像の読み込み完了。メインスレッドで呼ばれる。
+		 * <li>取り消し済みの読み込みの結果は捨てる。
+		 * @param key キャッシュキー
+		 * @param bitmap 背景画像。失敗時はnull。
+		 */
+		private void onBackgroundLoaded(String key, Bitmap bitmap) {
+			if (!key.equals(mLoadingKey)) return;
+			mLoadingKey = null;
+			mLoadingFuture = null;
+			mBackgroundKey = key;
+			mBackground = bitmap;
+			if (bitmap != null) mBackgroundCache.put(key, bitmap);
+			if (mVisible) drawFrame();
+		}
 
-			mBackground = null;
+		/**
+		 * 背景画像の読み込み。
+		 * <li>画像はアスペクト比をそのままでかつ画面サイズピッタリになるように補正したものを返す。
+		 * <li>背景画像未設定の場合はシステムのデフォルト。
+		 * <li>加工済みの画像はディスクキャッシュに保存し、次回の起動時は元画像を読まない。
+		 * <li>読み込み用スレッドで呼ばれる。取り消された場合は途中でnullを返す。
+		 * @param uri 背景画像のURI。null可。
+		 * @param size 画面サイズ
+		 * @return 背景画像。失敗時はnull。
+		 */
+		private Bitmap loadBackgroundBitmap(String uri, Point size) {
 			try {
-				Point size = Util.getDisplaySize(PostItWallpaper.this);
-				size.y -= mStatusBarHeight;
-				Bitmap srcBitmap;
 				if (uri != null) {
-					srcBitmap = Util.loadBitmap(PostItWallpaper.this, Uri.parse(uri), size);
-				} else {
-					srcBitmap = getSystemDefaultWallpaper();
+					Uri srcUri = Uri.parse(uri);
+					String diskKey = BitmapDiskCache.toKey(PostItWallpaper.this, srcUri, size);
+					Bitmap bitmap = (diskKey == null) ? null : mDiskCache.get(diskKey);
+					if (bitmap != null) return bitmap;
+					bitmap = mBitmapLoader.loadCenterCrop(PostItWallpaper.this, srcUri, size);
+					if (bitmap == null || Thread.currentThread().isInterrupted()) return bitmap;
+					if (diskKey != null) mDiskCache.put(diskKey, bitmap);
+					return bitmap;
 				}
-				if (srcBitmap == null) return null;
-				float dispAspect = (float) size.x / (float) size.y;
-				float imgAspect = (float) srcBitmap.getWidth() / (float) srcBitmap.getHeight();
-				int x, y, w, h;
-				if (dispAspect > imgAspect) {
-					w = srcBitmap.getWidth();
-					h = (int) (srcBitmap.getWidth() / dispAspect);
-					x = 0;
-					y = srcBitmap.getHeight() / 2 - h / 2;
-				} else {
-					w = (int) (srcBitmap.getHeight() * dispAspect);
-					h = srcBitmap.getHeight();
-					x = srcBitmap.getWidth() / 2 - w / 2;
-					y = 0;
-				}
-				// Log.d(TAG, "image size=" + dispAspect + "," + imgAspect + "," + x + "," + y + "," + w + "," + h);
-				Bitmap cropBitmap = Bitmap.createBitmap(srcBitmap, x, y, w, h);
-				mBackground = Bitmap.createScaledBitmap(cropBitmap, size.x, size.y, true);
-				cropBitmap.recycle();
-				// srcBitmap.recycle();
+				Bitmap srcBitmap = getSystemDefaultWallpaper();
+				if (srcBitmap == null || Thread.currentThread().isInterrupted()) return null;
+				return BitmapLoader.centerCrop(srcBitmap, size);
 			} catch (Exception e) {
-				Log.e(TAG, "setBackgroundUri:" + mBackgroundUri, e);
+				Log.e(TAG, "setBackgroundUri:" + uri, e);
+				return null;
 			}
-			return mBackground;
 		}
 		private Bitmap getSystemDefaultWallpaper() {
 			int resId = Resources.getSystem().getIdentifier("default_wallpaper", "drawable", "android");
@@ -0,0 +1,167 @@
+package org.kotemaru.android.postit;
+
+import java.util.List;
+
+import org.kotemaru.android.postit.data.PostItData;
+import org.kotemaru.android.postit.data.PostItDataAsync;
+import org.kotemaru.android.postit.data.TimerPattern;
+import org.kotemaru.android.postit.layout.AlarmListItemViews;
+import org.kotemaru.android.postit.util.Launcher;
+import org.kotemaru.android.postit.util.Util;
+import org.kotemaru.android.postit.widget.PostItView;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.Toast;
+
+/**
+ * 付箋のメモを全文検索して一覧を表示する。
+ * <li>入力が止まってから検索する。
+ * <li>検索結果をタップすると付箋の編集画面を開く。
+ * @author kotemaru.org
+ */
+public class SearchActivity extends Activity {
+	/** 入力が止まってから検索するまでの待ち時間(ms)。 */
+	private static final long SEARCH_DELAY = 300;
+
+	private EditText mSearchText;
+	private ListView mListView;
+	private PostItDataAdapter mAdapter;
+	private final Handler mHandler = new Handler();
+
+	private final Runnable mSearchTask = new Runnable() {
+		@Override
+		public void run() {
+			search();
+		}
+	};
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.search_activity);
+		final Context context = this;
+
+		mSearchText = (EditText) findViewById(R.id.search_text);
+		mSearchText.addTextChangedListener(new TextWatcher() {
+			@Override
+			public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+			}
+			@Override
+			public void onTextChanged(CharSequence s, int start, int before, int count) {
+			}
+			@Override
+			public void afterTextChanged(Editable s) {
+				mHandler.removeCallbacks(mSearchTask);
+				mHandler.postDelayed(mSearchTask, SEARCH_DELAY);
+			}
+		});
+
+		mListView = (ListView) findViewById(R.id.list_view);
+		mAdapter = new PostItDataAdapter();
+		mListView.setAdapter(mAdapter);
+		mListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+			@Override
+			public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+				PostItData data = mAdapter.getPostItData(position);
+				if (data == null) return;
+				Launcher.startPostItSettingsActivity(context, data);
+			}
+		});
+	}
+
+	/**
+	 * 編集画面から戻った時のために再検索する。
+	 */
+	@Override
+	public void onResume() {
+		super.onResume();
+		search();
+	}
+
+	@Override
+	public void onPause() {
+		mHandler.removeCallbacks(mSearchTask);
+		super.onPause();
+	}
+
+	private void search() {
+		final String text = mSearchText.getText().toString();
+		PostItDataAsync.searchPostItData(this, text, new PostItDataAsync.Callback<List<PostItData>>() {
+			@Override
+			public void onResult(List<PostItData> list) {
+				// 結果が届く前に入力が変わっていれば捨てる。
+				if (!text.equals(mSearchText.getText().toString())) return;
+				if (list == null) {
+					Toast.makeText(SearchActivity.this, R.string.msg_data_error, Toast.LENGTH_SHORT).show();
+				}
+				mAdapter.setData(list);
+			}
+		});
+	}
+
+	private class PostItDataAdapter extends BaseAdapter {
+		private List<PostItData> mList;
+		private TimerPattern mTimerPattern = new TimerPattern();
+
+		public void setData(List<PostItData> list) {
+			mList = list;
+			notifyDataSetChanged();
+		}
+
+		@Override
+		public int getCount() {
+			if (mList == null) return 0;
+			return mList.size();
+		}
+
+		@Override
+		public Object getItem(int position) {
+			return getPostItData(position);
+		}
+		public PostItData getPostItData(int position) {
+			if (mList == null) return null;
+			return mList.get(position);
+		}
+		@Override
+		public long getItemId(int position) {
+			return position;
+		}
+
+		@Override
+		public View getView(int position, View view, ViewGroup parent) {
+			if (view == null) {
+				view = getLayoutInflater().inflate(R.layout.alarm_list_item, null);
+				AlarmListItemViews tag = new AlarmListItemViews(view);
+				view.setTag(tag);
+			}
+			Context context = getBaseContext();
+			PostItData data = getPostItData(position);
+			if (data == null) return view;
+			AlarmListItemViews tag = (AlarmListItemViews) view.getTag();
+			if (data.getTimerPattern() != null) {
+				String dateTime = mTimerPattern.fromTime(data.getTimer()).toLocaleString(context, false);
+				tag.mDate.setText(dateTime.substring(0, dateTime.length() - 6));
+				tag.mTime.setText(dateTime.substring(dateTime.length() - 5));
+			} else {
+				tag.mDate.setText(null);
+				tag.mTime.setText(null);
+			}
+			tag.mMemo.setText(data.getMemoPreview());
+			tag.mMemo.setBackgroundResource(PostItView.sColorResourceMap.getFirst(data.getColor()));
+			int pad = Util.dp2px(context, 2);
+			tag.mMemo.setPadding(pad, 0, pad, 0);
+			return view;
+		}
+	}
+}
@@ -2,7 +2,7 @@ package org.kotemaru.android.postit;
 
 import org.kotemaru.android.postit.PostItConst.PostItColor;
 import org.kotemaru.android.postit.data.PostItData;
-import org.kotemaru.android.postit.data.PostItDataProvider;
+import org.kotemaru.android.postit.data.PostItDataAsync;
 import org.kotemaru.android.postit.data.Settings;
 import org.kotemaru.android.postit.util.Launcher;
 import org.kotemaru.android.postit.util.Util;
@@ -27,7 +27,7 @@ import android.widget.Button;
  * アプリメイン＆設定画面。
  * <li>初回起動時の初期化を行う。
  * <li>PostItWallpaperが壁紙に設定されていなければダイアログを出して設定画面に遷移する。
- * <li>背景画像、付箋トレイ表示アクションの設定を行う。
+ * <li>背景画像、付箋トレイ表示アクション、タイマーのまとめ時間幅の設定を行う。
  * @author kotemaru.org
  */
 public class SettingActivity extends Activity {
@@ -38,6 +38,7 @@ public class SettingActivity extends Activity {
 	private Button mChoosePictueDay;
 	private Button mChoosePictueNight;
 	private RadioLayout mCtrlActionRadioGroup;
+	private RadioLayout mAlarmWindowRadioGroup;
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -67,6 +68,7 @@ public class SettingActivity extends Activity {
 			}
 		});
 		mCtrlActionRadioGroup = (RadioLayout) findViewById(R.id.ctrl_action_radio_group);
+		mAlarmWindowRadioGroup = (RadioLayout) findViewById(R.id.alarm_window_radio_group);
 	}
 
 	/**
@@ -76,12 +78,12 @@ public class SettingActivity extends Activity {
 	private void fiastBootInitialize() {
 		PostItData data = new PostItData(-1, PostItColor.BLUE, Util.dp2px(this, 100), Util.dp2px(this, 50));
 		data.setMemo("Sample-1");
-		PostItDataProvider.createPostItData(this, data);
+		PostItDataAsync.createPostItData(this, data, null);
 		data.setPosX(Util.dp2px(this, 150));
 		data.setPosY(Util.dp2px(this, 200));
 		data.setColor(PostItColor.PINK);
 		data.setMemo("Sample-2");
-		PostItDataProvider.createPostItData(this, data);
+		PostItDataAsync.createPostItData(this, data, null);
 	}
 
 	/**
@@ -94,6 +96,7 @@ public class SettingActivity extends Activity {
 			showSetWallpaperDialog();
 		}
 		mCtrlActionRadioGroup.setValue(mSettings.getCtrlAction());
+		mAlarmWindowRadioGroup.setValueInt(mSettings.getAlarmWindow());
 	}
 
 	/**
@@ -114,6 +117,7 @@ public class SettingActivity extends Activity {
 	@Override
 	public void onPause() {
 		mSettings.setCtrlAction(mCtrlActionRadioGroup.getValue());
+		mSettings.setAlarmWindow(mAlarmWindowRadioGroup.getValueInt(Settings.DEFAULT_ALARM_WINDOW));
 		mSettings.save();
 		Launcher.notifyChangeSettings(this);
 		super.onPause();
@@ -178,6 +182,9 @@ public class SettingActivity extends Activity {
 	public boolean onOptionsItemSelected(MenuItem item) {
 		Intent intent;
 		switch (item.getItemId()) {
+		case R.id.action_search:
+			Launcher.startSearchActivity(this);
+			return true;
 		case R.id.action_about:
 			intent = new Intent(this, WebViewActivity.class);
 			intent.setData(Uri.parse("file:///android_asset/about.html"));
@@ -0,0 +1,301 @@
+package org.kotemaru.android.postit.data;
+
+import java.util.Date;
+
+import org.kotemaru.android.postit.util.Launcher;
+
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
+
+/**
+ * 付箋タイマーのスケジューラ。
+ * <li>非表示でタイマーの設定されている付箋の発火時刻を最小ヒープで保持する。</li>
+ * <li>PostItDataCache の変更に合わせて差分で更新する。全件の読み込みはキャッシュの読み込み時のみ。</li>
+ * <li>AlarmManager の再設定は先頭(一番早い発火時刻)が変わった時だけ行う。</li>
+ * <li>ヒープからの削除は遅延削除。無効になった要素は先頭に来た時に捨てる。</li>
+ * <li>無効要素が有効要素より十分多くなったらヒープを作り直すので、大きさは有効要素数に比例する。</li>
+ * <li>アラームは AlarmReceiver 宛ての Launcher.ACTION_CHANGE_DATA のブロードキャスト。</li>
+ * @author kotemaru.org
+ */
+public class AlarmScheduler {
+	private static final String TAG = AlarmScheduler.class.getSimpleName();
+	private static AlarmScheduler sInstance;
+
+	/** アラームを受信するレシーバのクラス名。 */
+	private static final String ALARM_RECEIVER = "org.kotemaru.android.postit.AlarmReceiver";
+
+	/** 無効要素がこれを超えて溜まったらヒープを作り直す。 */
+	private static final int COMPACT_SLACK = 16;
+
+	/** ヒープ。発火時刻の昇順。 */
+	private long[] mTimes = new long[16];
+	/** ヒープ。mTimes と同じ位置の付箋ID。 */
+	private long[] mIds = new long[16];
+	private int mSize = 0;
+	/** 付箋IDをキーとする現在有効な発火時刻。ヒープの要素はこれと一致する時のみ有効。 */
+	private final LongSparseArray<Long> mPending = new LongSparseArray<Long>();
+	/** true=キャッシュから構築済み。 */
+	private boolean mLoaded = false;
+	/** AlarmManager に設定済みの発火時刻。NO_TIME=未設定。 */
+	private long mProgrammedTime = TimerPattern.NO_TIME;
+	/** 設定のまとめ時間幅(ms)。-1=未読み込み。 */
+	private long mAlarmWindow = -1;
+
+	public static synchronized AlarmScheduler getInstance() {
+		if (sInstance == null) {
+			sInstance = new AlarmScheduler();
+		}
+		return sInstance;
+	}
+
+	private AlarmScheduler() {
+	}
+
+	public synchronized boolean isLoaded() {
+		return mLoaded;
+	}
+
+	/**
+	 * @param data 付箋データ
+	 * @return true=タイマー待ちの付箋。
+	 */
+	private static boolean isPending(PostItData data) {
+		return !data.isEnabled() && data.getTimerPattern() != null;
+	}
+
+	/**
+	 * 全付箋データからヒープを作り直す。
+	 * @param map 付箋IDをキーとする全付箋データ
+	 */
+	synchronized void rebuild(LongSparseArray<PostItData> map) {
+		mPending.clear();
+		for (int i = 0; i < map.size(); i++) {
+			PostItData data = map.valueAt(i);
+			if (isPending(data)) mPending.put(data.getId(), data.getTimer());
+		}
+		heapify();
+		mLoaded = true;
+	}
+
+	/**
+	 * 未構築に戻す。
+	 */
+	synchronized void clear() {
+		mPending.clear();
+		mSize = 0;
+		mLoaded = false;
+	}
+
+	/**
+	 * 付箋の作成または変更を反映する。
+	 * @param data 付箋データ
+	 */
+	synchronized void update(PostItData data) {
+		if (!mLoaded) return;
+		if (!isPending(data)) {
+			remove(data.getId());
+			return;
+		}
+		Long cur = mPending.get(data.getId());
+		if (cur != null && cur == data.getTimer()) return;
+		mPending.put(data.getId(), data.getTimer());
+		push(data.getTimer(), data.getId());
+		compactIfNeeded();
+	}
+
+	/**
+	 * 付箋の削除またはタイマー待ちの解除を反映する。
+	 * @param id 付箋ID
+	 */
+	synchronized void remove(long id) {
+		if (!mLoaded) return;
+		mPending.remove(id);
+		compactIfNeeded();
+	}
+
+	/**
+	 * 一番早い発火時刻を返す。先頭の無効要素はここで捨てる。
+	 * @return 発火時刻。無ければ TimerPattern.NO_TIME。
+	 */
+	public synchronized long peek() {
+		while (mSize > 0) {
+			Long cur = mPending.get(mIds[0]);
+			if (cur != null && cur == mTimes[0]) return mTimes[0];
+			pop();
+		}
+		return TimerPattern.NO_TIME;
+	}
+
+	/**
+	 * 一番早い発火時刻が前回の設定から変わっていれば AlarmManager を設定し直す。
+	 * <li>タイマー待ちの付箋が無くなった場合はアラームを取り消す。</li>
+	 * @param context
+	 * @param force true=変わっていなくても設定し直す。
+	 * @return true=構築済みで判定できた。false=未構築なので何もしていない。
+	 */
+	public synchronized boolean reprogram(Context context, boolean force) {
+		if (!mLoaded) return false;
+		long head = peek();
+		if (!force && head == mProgrammedTime) return true;
+		if (head == TimerPattern.NO_TIME) {
+			cancelAlarm(context);
+		} else {
+			setAlarm(context, head);
+		}
+		return true;
+	}
+	public boolean reprogram(Context context) {
+		return reprogram(context, false);
+	}
+
+	/**
+	 * 付箋タイマーのアラームを設定する。以前の設定は取り消す。
+	 * <li>発火時刻ちょうどに設定する。KITKAT 以降の set() は遅れる事が有るので setExact() を使う。</li>
+	 * <li>まとめ時間幅内のタイマーは発火時に AlarmReceiver がまとめて有効にするので、ここでは先頭だけを設定する。</li>
+	 * <li>未構築の時にDBから求めた発火時刻を設定する場合にも使う。</li>
+	 * @param context
+	 * @param time 発火時刻
+	 */
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	public synchronized void setAlarm(Context context, long time) {
+		Log.d(TAG, "setAlarm:" + new Date(time));
+		AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		PendingIntent pi = newAlarmIntent(context);
+		am.cancel(pi);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			am.setExact(AlarmManager.RTC_WAKEUP, time, pi);
+		} else {
+			am.set(AlarmManager.RTC_WAKEUP, time, pi);
+		}
+		mProgrammedTime = time;
+	}
+
+	/**
+	 * 設定のまとめ時間幅を返す。設定は最初の１回だけ読み込む。
+	 * @param context
+	 * @return まとめ時間幅(ms)
+	 */
+	public synchronized long getAlarmWindow(Context context) {
+		if (mAlarmWindow < 0) {
+			mAlarmWindow = new Settings(context).load().getAlarmWindowMillis();
+		}
+		return mAlarmWindow;
+	}
+
+	/**
+	 * 設定を読み直す。Launcher.ACTION_CHANGE_SETTENGS を受けた時に呼ぶ。
+	 * @param context
+	 */
+	public synchronized void reloadSettings(Context context) {
+		mAlarmWindow = new Settings(context).load().getAlarmWindowMillis();
+	}
+
+	/**
+	 * 付箋タイマーのアラームを取り消す。
+	 * @param context
+	 */
+	private void cancelAlarm(Context context) {
+		Log.d(TAG, "cancelAlarm");
+		AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		am.cancel(newAlarmIntent(context));
+		mProgrammedTime = TimerPattern.NO_TIME;
+	}
+
+	/**
+	 * アラームの PendingIntent。
+	 * <li>以前のバージョンで設定したアラームも取り消せるように、同じく AlarmReceiver を明示したIntentにする。</li>
+	 * <li>UIのパッケージに依存しないようにクラス名で指定する。</li>
+	 */
+	private static PendingIntent newAlarmIntent(Context context) {
+		Intent intent = new Intent(Launcher.ACTION_CHANGE_DATA);
+		intent.setClassName(context, ALARM_RECEIVER);
+		return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_ONE_SHOT);
+	}
+
+	// --------------------------------------------------------------------------------------------
+	// 二分ヒープ
+
+	private void push(long time, long id) {
+		if (mSize == mTimes.length) {
+			long[] times = new long[mSize * 2];
+			long[] ids = new long[mSize * 2];
+			System.arraycopy(mTimes, 0, times, 0, mSize);
+			System.arraycopy(mIds, 0, ids, 0, mSize);
+			mTimes = times;
+			mIds = ids;
+		}
+		mTimes[mSize] = time;
+		mIds[mSize] = id;
+		siftUp(mSize++);
+	}
+
+	private void pop() {
+		mSize--;
+		mTimes[0] = mTimes[mSize];
+		mIds[0] = mIds[mSize];
+		if (mSize > 0) siftDown(0);
+	}
+
+	/**
+	 * 無効要素が溜まっていればヒープを作り直す。
+	 */
+	private void compactIfNeeded() {
+		if (mSize > mPending.size() * 2 + COMPACT_SLACK) heapify();
+	}
+
+	/**
+	 * mPending の有効な要素だけでヒープを作り直す。O(n)
+	 */
+	private void heapify() {
+		int n = mPending.size();
+		if (mTimes.length < n) {
+			mTimes = new long[Integer.highestOneBit(n) * 2];
+			mIds = new long[mTimes.length];
+		}
+		for (int i = 0; i < n; i++) {
+			mIds[i] = mPending.keyAt(i);
+			mTimes[i] = mPending.valueAt(i);
+		}
+		mSize = n;
+		for (int i = n / 2 - 1; i >= 0; i--) {
+			siftDown(i);
+		}
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (mTimes[parent] <= mTimes[i]) break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) {
+		while (true) {
+			int min = i;
+			int left = i * 2 + 1;
+			int right = left + 1;
+			if (left < mSize && mTimes[left] < mTimes[min]) min = left;
+			if (right < mSize && mTimes[right] < mTimes[min]) min = right;
+			if (min == i) break;
+			swap(i, min);
+			i = min;
+		}
+	}
+
+	private void swap(int a, int b) {
+		long time = mTimes[a];
+		long id = mIds[a];
+		mTimes[a] = mTimes[b];
+		mIds[a] = mIds[b];
+		mTimes[b] = time;
+		mIds[b] = id;
+	}
+}
@@ -1,9 +1,11 @@
 package org.kotemaru.android.postit.data;
 
 import org.kotemaru.android.postit.PostItConst.PostItShape;
+import org.kotemaru.android.postit.data.PostItDataProvider.POST_IT_COLS;
 
 /**
  * 付箋データBean。
+ * <li>setterで値が変わったカラムを記録する。DB更新は変更されたカラムのみ行う。
  * @author kotemaru.org
  */
 public class PostItData {
@@ -17,8 +19,16 @@ public class PostItData {
 	private int fontSize; // sp
 	private int timerIsRepeat;
 	private String timerPattern;
+	/** TIMER_PATTERN のコード。Providerが生成するので変更の記録はしない。 */
+	private long timerCode = TIMER_CODE_UNRESOLVED;
 	private long timer;
 	private String memo;
+	/** MEMOの先頭部分。一覧表示用。MEMOを読まない一覧取得ではこちらだけが設定される。 */
+	private String memoPreview;
+	/** 最後に書き込まれた時のリビジョン。Providerが採番するので変更の記録はしない。 */
+	private long revision;
+	/** 変更されたカラムのビットマスク。ビット位置は POST_IT_COLS の序数。 */
+	private int dirty;
 
 	public PostItData() {
 	}
@@ -41,6 +51,86 @@ public class PostItData {
 		this.timerPattern = timerPattern;
 		this.timer = timer;
 		this.memo = memo;
+		this.memoPreview = toMemoPreview(memo);
+		this.dirty = ALL_DIRTY;
+	}
+
+	/**
+	 * コピーコンストラクタ。変更の記録もコピーする。
+	 * @param src コピー元
+	 */
+	public PostItData(PostItData src) {
+		this.id = src.id;
+		this.enabled = src.enabled;
+		this.color = src.color;
+		this.posX = src.posX;
+		this.posY = src.posY;
+		this.width = src.width;
+		this.height = src.height;
+		this.fontSize = src.fontSize;
+		this.timerIsRepeat = src.timerIsRepeat;
+		this.timerPattern = src.timerPattern;
+		this.timerCode = src.timerCode;
+		this.timer = src.timer;
+		this.memo = src.memo;
+		this.memoPreview = src.memoPreview;
+		this.revision = src.revision;
+		this.dirty = src.dirty;
+	}
+
+	private static final int ALL_DIRTY = (1 << POST_IT_COLS.values().length) - 1;
+	/** timerCode が未算出。 */
+	private static final long TIMER_CODE_UNRESOLVED = -2;
+
+	/** MEMO_PREVIEW の最大文字数。 */
+	public static final int MEMO_PREVIEW_LENGTH = 64;
+
+	/**
+	 * MEMOから一覧表示用の先頭部分を切り出す。
+	 * <li>サロゲートペアの途中では切らない。
+	 * @param memo MEMO
+	 * @return 先頭 MEMO_PREVIEW_LENGTH 文字まで。
+	 */
+	public static String toMemoPreview(String memo) {
+		if (memo == null || memo.length() <= MEMO_PREVIEW_LENGTH) return memo;
+		int end = MEMO_PREVIEW_LENGTH;
+		if (Character.isHighSurrogate(memo.charAt(end - 1))) end--;
+		return memo.substring(0, end);
+	}
+
+	/**
+	 * 変更の有無。
+	 * @return true=DBに未反映の変更が有る。
+	 */
+	public boolean isDirty() {
+		return dirty != 0;
+	}
+	/**
+	 * カラム単位の変更の有無。
+	 * @param col カラム
+	 * @return true=DBに未反映の変更が有る。
+	 */
+	public boolean isDirty(POST_IT_COLS col) {
+		return (dirty & col.bit()) != 0;
+	}
+	/**
+	 * 変更の記録をクリアする。DBと同期した後に呼ぶ。
+	 */
+	public void clearDirty() {
+		dirty = 0;
+	}
+	/**
+	 * 指定カラムの変更の記録をクリアする。
+	 * @param mask POST_IT_COLS.bit() の論理和
+	 */
+	public void clearDirty(int mask) {
+		dirty &= ~mask;
+	}
+	private void setDirty(POST_IT_COLS col) {
+		dirty |= col.bit();
+	}
+	private static boolean equals(String a, String b) {
+		return (a == null) ? b == null : a.equals(b);
 	}
 
 	public long getId() {
@@ -56,32 +146,62 @@ public class PostItData {
 		return enabled != 0;
 	}
 	public void setEnabled(boolean enabled) {
-		this.enabled = enabled ? 1 : 0;
+		int val = enabled ? 1 : 0;
+		if (this.enabled != val) {
+			this.enabled = val;
+			setDirty(POST_IT_COLS.ENABLED);
+		}
 	}
 
 	public int getColor() {
 		return color;
 	}
 	public void setColor(int color) {
-		this.color = color;
+		if (this.color != color) {
+			this.color = color;
+			setDirty(POST_IT_COLS.COLOR);
+		}
 	}
 	public int getPosX() {
 		return posX;
 	}
 	public void setPosX(int posX) {
-		this.posX = posX;
+		if (this.posX != posX) {
+			this.posX = posX;
+			setDirty(POST_IT_COLS.POS_X);
+		}
 	}
 	public int getPosY() {
 		return posY;
 	}
 	public void setPosY(int posY) {
-		this.posY = posY;
+		if (this.posY != posY) {
+			this.posY = posY;
+			setDirty(POST_IT_COLS.POS_Y);
+		}
 	}
 	public String getMemo() {
 		return memo;
 	}
 	public void setMemo(String memo) {
-		this.memo = memo;
+		if (!equals(this.memo, memo)) {
+			this.memo = memo;
+			this.memoPreview = toMemoPreview(memo);
+			setDirty(POST_IT_COLS.MEMO);
+		}
+	}
+	/**
+	 * @return MEMOの先頭部分。MEMOを読んでいなくても設定されている。
+	 */
+	public String getMemoPreview() {
+		return memoPreview;
+	}
+	/**
+	 * DBから読んだ MEMO_PREVIEW の設定。Providerが生成するので変更の記録はしない。
+	 * @param memoPreview
+	 */
+	public void setMemoPreview(String memoPreview) {
+		this.memoPreview = memoPreview;
 	}
 
 	public int getWidth() {
@@ -89,7 +209,10 @@ public class PostItData {
 	}
 
 	public void setWidth(int width) {
-		this.width = width;
+		if (this.width != width) {
+			this.width = width;
+			setDirty(POST_IT_COLS.WIDTH);
+		}
 	}
 
 	public int getHeight() {
@@ -97,7 +220,10 @@ public class PostItData {
 	}
 
 	public void setHeight(int height) {
-		this.height = height;
+		if (this.height != height) {
+			this.height = height;
+			setDirty(POST_IT_COLS.HEIGHT);
+		}
 	}
 
 	public int getFontSize() {
@@ -105,7 +231,10 @@ public class PostItData {
 	}
 
 	public void setFontSize(int fontSize) {
-		this.fontSize = fontSize;
+		if (this.fontSize != fontSize) {
+			this.fontSize = fontSize;
+			setDirty(POST_IT_COLS.FONT_SIZE);
+		}
 	}
 
 	public int getTimerIsRepeat() {
@@ -117,7 +246,11 @@ public class PostItData {
 	}
 
 	public void setTimerIsRepeat(boolean timerIsRepeat) {
-		this.timerIsRepeat = timerIsRepeat ? 1 : 0;
+		int val = timerIsRepeat ? 1 : 0;
+		if (this.timerIsRepeat != val) {
+			this.timerIsRepeat = val;
+			setDirty(POST_IT_COLS.TIMER_IS_REPEATE);
+		}
 	}
 
 	public String getTimerPattern() {
@@ -125,7 +258,34 @@ public class PostItData {
 	}
 
 	public void setTimerPattern(String timerPattern) {
-		this.timerPattern = timerPattern;
+		if (!equals(this.timerPattern, timerPattern)) {
+			this.timerPattern = timerPattern;
+			this.timerCode = TIMER_CODE_UNRESOLVED;
+			setDirty(POST_IT_COLS.TIMER_PATTERN);
+		}
+	}
+
+	/**
+	 * TIMER_PATTERN のコード。
+	 * <li>DBから読んだ場合はその値。TIMER_PATTERN を変更した場合は必要になった時に算出する。
+	 * @return コード。パターン無しまたは不正なパターンは TimerPattern.NO_CODE。
+	 */
+	public long getTimerCode() {
+		if (timerCode == TIMER_CODE_UNRESOLVED) {
+			try {
+				timerCode = TimerPattern.toCode(timerPattern);
+			} catch (IllegalArgumentException e) {
+				timerCode = TimerPattern.NO_CODE;
+			}
+		}
+		return timerCode;
+	}
+	/**
+	 * DBから読んだ TIMER_CODE の設定。
+	 * @param timerCode コード
+	 */
+	public void setTimerCode(long timerCode) {
+		this.timerCode = timerCode;
 	}
 
 	public long getTimer() {
@@ -133,6 +293,16 @@ public class PostItData {
 	}
 
 	public void setTimer(long timer) {
-		this.timer = timer;
+		if (this.timer != timer) {
+			this.timer = timer;
+			setDirty(POST_IT_COLS.TIMER);
+		}
+	}
+
+	public long getRevision() {
+		return revision;
+	}
+	public void setRevision(long revision) {
+		this.revision = revision;
 	}
 }
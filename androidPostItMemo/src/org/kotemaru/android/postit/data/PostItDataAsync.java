@@ -0,0 +1,230 @@
+package org.kotemaru.android.postit.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
+
+/**
+ * 付箋データの非同期アクセス。
+ * <li>PostItDataProviderのコンビニメソッドを専用のDBスレッドで実行する。
+ * <li>DBスレッドは１本なので書き込みは常に直列化される。
+ * <li>結果はメインスレッドでコールバックする。コールバックはnull可。
+ * <li>タスクが例外で失敗した場合もコールバックは必ず呼ぶ。結果は null となる。
+ * <li>引数の付箋データは呼び出し時点でコピーするので、呼び出し後に変更しても影響しない。
+ * @author kotemaru.org
+ */
+public class PostItDataAsync {
+	private static final String TAG = PostItDataAsync.class.getSimpleName();
+
+	/**
+	 * 結果を受け取るコールバック。メインスレッドで呼ばれる。
+	 * <li>タスクが失敗した場合は result=null で呼ばれる。
+	 * @param <T> 結果の型
+	 */
+	public interface Callback<T> {
+		public void onResult(T result);
+	}
+
+	private static volatile Thread sDbThread;
+
+	private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+			}, "PostItDB");
+			sDbThread = thread;
+			return thread;
+		}
+	});
+	private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * @return true=現在のスレッドがDBスレッド。
+	 */
+	public static boolean isDbThread() {
+		return Thread.currentThread() == sDbThread;
+	}
+
+	/**
+	 * DBスレッドでタスクを実行し、結果をメインスレッドでコールバックする。
+	 * <li>タスクが例外で失敗した場合はログを出して null でコールバックする。Future は例外となる。
+	 * @param task タスク
+	 * @param callback コールバック。null可。
+	 * @return タスクのFuture
+	 */
+	public static <T> Future<T> submit(final Callable<T> task, final Callback<T> callback) {
+		return sExecutor.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				T result = null;
+				try {
+					result = task.call();
+					return result;
+				} catch (Exception e) {
+					Log.e(TAG, "submit:" + e, e);
+					throw e;
+				} finally {
+					postResult(callback, result);
+				}
+			}
+		});
+	}
+
+	private static <T> void postResult(final Callback<T> callback, final T result) {
+		if (callback == null) return;
+		sMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				callback.onResult(result);
+			}
+		});
+	}
+
+	// --------------------------------------------------------------------------------------------
+	// PostItDataProvider のコンビニメソッドの非同期版。
+
+	public static Future<PostItData> getPostItData(Context context, final long id,
+			Callback<PostItData> callback) {
+		final Context appContext = context.getApplicationContext();
+		return submit(new Callable<PostItData>() {
+			@Override
+			public PostItData call() {
+				return PostItDataProvider.getPostItData(appContext, id);
+			}
+		}, callback);
+	}
+
+	public static Future<List<PostItData>> getAllPostItData(Context context, final String[] projection,
+			Callback<List<PostItData>> callback) {
+		final Context appContext = context.getApplicationContext();
+		return submit(new Callable<List<PostItData>>() {
+			@Override
+			public List<PostItData> call() {
+				return PostItDataProvider.getAllPostItData(appContext, projection);
+			}
+		}, callback);
+	}
+
+	public static Future<List<PostItData>> searchPostItData(Context context, final String text,
+			Callback<List<PostItData>> callback) {
+		final Context appContext = context.getApplicationContext();
+		return submit(new Callable<List<PostItData>>() {
+			@Override
+			public List<PostItData> call() {
+				return PostItDataProvider.searchPostItData(appContext, text);
+			}
+		}, callback);
+	}
+
+	public static Future<LongSparseArray<PostItData>> getPostItDataMap(Context context, final long curTime,
+			Callback<LongSparseArray<PostItData>> callback) {
+		final Context appContext = context.getApplicationContext();
+		return submit(new Callable<LongSparseArray<PostItData>>() {
+			@Override
+			public LongSparseArray<PostItData> call() {
+				return PostItDataProvider.getPostItDataMap(appContext, curTime);
+			}
+		}, callback);
+	}
+
+	public static Future<PostItDataChanges> getPostItDataChanges(Context context, final long curTime,
+			final long sinceRevision, Callback<PostItDataChanges> callback) {
+		final Context appContext = context.getApplicationContext();
+		return submit(new Callable<PostItDataChanges>() {
+			@Override
+			public PostItDataChanges call() {
+				return PostItDataProvider.getPostItDataChanges(appContext, curTime, sinceRevision);
+			}
+		}, callback);
+	}
+
+	public static Future<PostItData> getNextTimerPostItData(Context context, Callback<PostItData> callback) {
+		final Context appContext = context.getApplicationContext();
+		return submit(new Callable<PostItData>() {
+			@Override
+			public PostItData call() {
+				return PostItDataProvider.getNextTimerPostItData(appContext);
+			}
+		}, callback);
+	}
+
+	public static Future<Void> setAllPostItData(Context context, List<PostItData> list, Callback<Void> callback) {
+		final Context appContext = context.getApplicationContext();
+		final List<PostItData> copy = new ArrayList<PostItData>(list.size());
+		for (PostItData data : list) {
+			copy.add(new PostItData(data));
+		}
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				PostItDataProvider.setAllPostItData(appContext, copy);
+				return null;
+			}
+		}, callback);
+	}
+
+	public static Future<Long> createPostItData(Context context, PostItData data, Callback<Long> callback) {
+		final Context appContext = context.getApplicationContext();
+		final PostItData copy = new PostItData(data);
+		return submit(new Callable<Long>() {
+			@Override
+			public Long call() {
+				return PostItDataProvider.createPostItData(appContext, copy);
+			}
+		}, callback);
+	}
+
+	/**
+	 * 付箋データの更新。
+	 * <li>変更の記録はコピーに引き継ぎ、呼び出し元の付箋データではクリアする。
+	 */
+	public static Future<Boolean> updatePostItData(Context context, PostItData data, Callback<Boolean> callback) {
+		final Context appContext = context.getApplicationContext();
+		final PostItData copy = new PostItData(data);
+		data.clearDirty();
+		return submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return PostItDataProvider.updatePostItData(appContext, copy);
+			}
+		}, callback);
+	}
+
+	public static Future<Void> removePostItData(Context context, PostItData data, Callback<Void> callback) {
+		final Context appContext = context.getApplicationContext();
+		final PostItData copy = new PostItData(data);
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				PostItDataProvider.removePostItData(appContext, copy);
+				return null;
+			}
+		}, callback);
+	}
+
+	public static Future<long[]> updateTimer(Context context, final long curTime, Callback<long[]> callback) {
+		final Context appContext = context.getApplicationContext();
+		return submit(new Callable<long[]>() {
+			@Override
+			public long[] call() {
+				return PostItDataProvider.updateTimer(appContext, curTime);
+			}
+		}, callback);
+	}
+}
@@ -0,0 +1,181 @@
+package org.kotemaru.android.postit.data;
+
+import android.content.ContentValues;
+import android.support.v4.util.LongSparseArray;
+
+/**
+ * 付箋データのプロセス内キャッシュ。
+ * <li>付箋IDをキーに全付箋データを保持する。PostItDataProvider のコンビニメソッドが書き込み時に更新する。
+ * <li>一度全件を読み込むまでは未ロード状態で、取得系メソッドはDBを読む。
+ * <li>内容が変わる度に世代番号を進める。世代番号が同じならば前回の同期から変更は無い。
+ * <li>保持する付箋データも返す付箋データもコピーなので、呼び出し元で変更しても影響しない。
+ * <li>変更は AlarmScheduler にも反映する。
+ * @author kotemaru.org
+ */
+public class PostItDataCache {
+	private static PostItDataCache sInstance;
+
+	/** 付箋IDをキーとする付箋データ。 */
+	private final LongSparseArray<PostItData> mMap = new LongSparseArray<PostItData>();
+	/** true=全件読み込み済み。 */
+	private boolean mLoaded = false;
+	/** 世代番号。変更の度に進む。 */
+	private long mGeneration = 0;
+
+	public static synchronized PostItDataCache getInstance() {
+		if (sInstance == null) {
+			sInstance = new PostItDataCache();
+		}
+		return sInstance;
+	}
+
+	private PostItDataCache() {
+	}
+
+	public synchronized boolean isLoaded() {
+		return mLoaded;
+	}
+
+	public synchronized long getGeneration() {
+		return mGeneration;
+	}
+
+	/**
+	 * DBから読み込んだ全付箋データで置き換える。
+	 * <li>読み込み開始後に変更が有った場合は読み込み結果が古い可能性が有るので置き換えない。
+	 * @param map 付箋IDをキーとする全付箋データ
+	 * @param generation 読み込み開始時の世代番号
+	 * @return true=置き換えた。
+	 */
+	public synchronized boolean load(LongSparseArray<PostItData> map, long generation) {
+		if (generation != mGeneration) return false;
+		mMap.clear();
+		for (int i = 0; i < map.size(); i++) {
+			mMap.put(map.keyAt(i), copy(map.valueAt(i)));
+		}
+		AlarmScheduler.getInstance().rebuild(mMap);
+		mLoaded = true;
+		mGeneration++;
+		return true;
+	}
+
+	/**
+	 * 全付箋データを未ロード状態に戻す。次の取得時にDBから読み直す。
+	 */
+	public synchronized void invalidate() {
+		mMap.clear();
+		AlarmScheduler.getInstance().clear();
+		mLoaded = false;
+		mGeneration++;
+	}
+
+	/**
+	 * @param id 付箋ID
+	 * @return 付箋データのコピー。無ければnull。
+	 */
+	public synchronized PostItData get(long id) {
+		PostItData data = mMap.get(id);
+		return data == null ? null : copy(data);
+	}
+
+	/**
+	 * 全付箋データのコピーをマップで返す。
+	 * <li>recycle に同じIDの付箋データが有ればそのインスタンスに上書きして再利用する。
+	 * @param recycle 再利用する付箋データのマップ。null可。
+	 * @return 付箋IDをキーとする付箋データのマップ。
+	 */
+	public synchronized LongSparseArray<PostItData> getPostItDataMap(LongSparseArray<PostItData> recycle) {
+		LongSparseArray<PostItData> map = new LongSparseArray<PostItData>(mMap.size());
+		for (int i = 0; i < mMap.size(); i++) {
+			long id = mMap.keyAt(i);
+			PostItData src = mMap.valueAt(i);
+			PostItData data = (recycle == null) ? null : recycle.get(id);
+			if (data == null) {
+				data = copy(src);
+			} else {
+				PostItDataProvider.toPostItData(PostItDataProvider.fromPostItData(null, src), data);
+				data.clearDirty();
+			}
+			map.put(id, data);
+		}
+		return map;
+	}
+
+	/**
+	 * 付箋データの登録。既存の付箋データは置き換える。
+	 * <li>MEMOを読んでいない(null)付箋データの場合は既存のMEMOを引き継ぐ。DBの REPLACE と同じ。
+	 * @param data 付箋データ
+	 */
+	public synchronized void put(PostItData data) {
+		PostItData cached = copy(data);
+		PostItData old = mMap.get(cached.getId());
+		if (cached.getMemo() == null && old != null) {
+			cached.setMemo(old.getMemo());
+			cached.clearDirty();
+		}
+		mMap.put(cached.getId(), cached);
+		AlarmScheduler.getInstance().update(cached);
+		mGeneration++;
+	}
+
+	/**
+	 * 付箋データの変更カラムを反映する。キャッシュに無い付箋は無視する。
+	 * @param id 付箋ID
+	 * @param values 変更カラム
+	 */
+	public synchronized void merge(long id, ContentValues values) {
+		PostItData data = mMap.get(id);
+		mGeneration++;
+		if (data == null) return;
+		PostItDataProvider.toPostItData(values, data);
+		data.clearDirty();
+		AlarmScheduler.getInstance().update(data);
+	}
+
+	/**
+	 * @param id 削除する付箋ID
+	 */
+	public synchronized void remove(long id) {
+		mMap.remove(id);
+		AlarmScheduler.getInstance().remove(id);
+		mGeneration++;
+	}
+
+	/**
+	 * タイマーで有効になった付箋を反映する。
+	 * @param ids 有効にした付箋IDの配列
+	 */
+	public synchronized void setEnabled(long[] ids) {
+		if (ids.length == 0) return;
+		AlarmScheduler scheduler = AlarmScheduler.getInstance();
+		for (long id : ids) {
+			scheduler.remove(id);
+			PostItData data = mMap.get(id);
+			if (data == null) continue;
+			data.setEnabled(true);
+			data.clearDirty();
+		}
+		mGeneration++;
+	}
+
+	/**
+	 * 現在時刻を過ぎたタイマーの付箋が有るか調べる。DBは読まない。
+	 * <li>未ロード状態では判断できないので true を返す。
+	 * <li>AlarmScheduler の一番早い発火時刻と比べるだけなので付箋の数によらない。
+	 * @param curTime 現在時刻
+	 * @return true=有効にすべき付箋が有る。
+	 */
+	public synchronized boolean hasExpiredTimer(long curTime) {
+		if (!mLoaded) return true;
+		AlarmScheduler scheduler = AlarmScheduler.getInstance();
+		if (!scheduler.isLoaded()) return true;
+		long head = scheduler.peek();
+		return head != TimerPattern.NO_TIME && head < curTime;
+	}
+
+	private static PostItData copy(PostItData src) {
+		PostItData data = new PostItData(src);
+		data.clearDirty();
+		return data;
+	}
+}
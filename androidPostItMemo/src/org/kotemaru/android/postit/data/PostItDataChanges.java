@@ -0,0 +1,59 @@
+package org.kotemaru.android.postit.data;
+
+import android.support.v4.util.LongSparseArray;
+
+/**
+ * 指定リビジョン以降の付箋データの差分。
+ * <li>PostItDataProvider.getPostItDataChanges() の結果。
+ * <li>次回の差分取得には getRevision() を渡す。
+ * @author kotemaru.org
+ */
+public class PostItDataChanges {
+	/** 付箋IDをキーとする更新または作成された付箋データ。 */
+	private final LongSparseArray<PostItData> mUpdated = new LongSparseArray<PostItData>();
+	/** 付箋IDをキーとする削除された付箋のリビジョン。 */
+	private final LongSparseArray<Long> mRemoved = new LongSparseArray<Long>();
+	/** 差分に含まれる最大のリビジョン。 */
+	private long mRevision;
+
+	public PostItDataChanges(long sinceRevision) {
+		mRevision = sinceRevision;
+	}
+
+	/**
+	 * 更新された付箋データの追加。同じIDの削除は取り消す。
+	 * @param data 付箋データ
+	 */
+	public void addUpdated(PostItData data) {
+		mRemoved.remove(data.getId());
+		mUpdated.put(data.getId(), data);
+		if (data.getRevision() > mRevision) mRevision = data.getRevision();
+	}
+
+	/**
+	 * 削除された付箋の追加。同じIDの更新は取り消す。
+	 * @param id 付箋ID
+	 * @param revision 削除時のリビジョン
+	 */
+	public void addRemoved(long id, long revision) {
+		mUpdated.remove(id);
+		mRemoved.put(id, revision);
+		if (revision > mRevision) mRevision = revision;
+	}
+
+	public LongSparseArray<PostItData> getUpdated() {
+		return mUpdated;
+	}
+
+	public LongSparseArray<Long> getRemoved() {
+		return mRemoved;
+	}
+
+	public long getRevision() {
+		return mRevision;
+	}
+
+	public boolean isEmpty() {
+		return mUpdated.size() == 0 && mRemoved.size() == 0;
+	}
+}
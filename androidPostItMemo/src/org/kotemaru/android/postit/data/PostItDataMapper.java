@@ -0,0 +1,79 @@
+package org.kotemaru.android.postit.data;
+
+import org.kotemaru.android.postit.data.PostItDataProvider.POST_IT_COLS;
+
+import android.database.Cursor;
+
+/**
+ * DBレコードから付箋データBeanへの変換器。
+ * <li>カラムインデックスはCursor毎に一度だけ解決する。行毎の getColumnIndex() は行わない。
+ * <li>プロジェクションに含まれないカラムはBeanの値を変更しない。
+ * <li>既存のBeanを渡せば再利用する。
+ * @author kotemaru.org
+ */
+public class PostItDataMapper {
+	private static final POST_IT_COLS[] COLS = POST_IT_COLS.values();
+
+	/** POST_IT_COLSの序数をキーとするカラムインデックス。-1=プロジェクションに無し。 */
+	private final int[] mIndexes = new int[COLS.length];
+	/** プロジェクションに含まれるカラムの POST_IT_COLS.bit() の論理和。 */
+	private int mMappedMask;
+	private Cursor mCursor;
+
+	public PostItDataMapper() {
+	}
+
+	public PostItDataMapper(Cursor cursor) {
+		setCursor(cursor);
+	}
+
+	/**
+	 * Cursorの設定。Cursorが変わった時だけカラムインデックスを解決する。
+	 * @param cursor
+	 * @return this
+	 */
+	public PostItDataMapper setCursor(Cursor cursor) {
+		if (cursor == mCursor) return this;
+		mCursor = cursor;
+		mMappedMask = 0;
+		for (POST_IT_COLS col : COLS) {
+			int index = cursor.getColumnIndex(col.name());
+			mIndexes[col.ordinal()] = index;
+			if (index >= 0) mMappedMask |= col.bit();
+		}
+		return this;
+	}
+
+	/**
+	 * Cursorの現在行をBeanに変換する。
+	 * <li>読み込んだカラムはDBと同期済みとして変更の記録をクリアする。
+	 * @param cursor
+	 * @param data 再利用するBean。nullならば内部で生成。
+	 * @return 付箋データBean
+	 */
+	public PostItData map(Cursor cursor, PostItData data) {
+		setCursor(cursor);
+		if (data == null) data = new PostItData();
+		final int[] idx = mIndexes;
+		int i;
+		// @formatter:off
+		if ((i = idx[POST_IT_COLS._ID.ordinal()]) >= 0) data.setId(cursor.getLong(i));
+		if ((i = idx[POST_IT_COLS.ENABLED.ordinal()]) >= 0) data.setEnabled(cursor.getInt(i) != 0);
+		if ((i = idx[POST_IT_COLS.COLOR.ordinal()]) >= 0) data.setColor(cursor.getInt(i));
+		if ((i = idx[POST_IT_COLS.POS_X.ordinal()]) >= 0) data.setPosX(cursor.getInt(i));
+		if ((i = idx[POST_IT_COLS.POS_Y.ordinal()]) >= 0) data.setPosY(cursor.getInt(i));
+		if ((i = idx[POST_IT_COLS.WIDTH.ordinal()]) >= 0) data.setWidth(cursor.getInt(i));
+		if ((i = idx[POST_IT_COLS.HEIGHT.ordinal()]) >= 0) data.setHeight(cursor.getInt(i));
+		if ((i = idx[POST_IT_COLS.FONT_SIZE.ordinal()]) >= 0) data.setFontSize(cursor.getInt(i));
+		if ((i = idx[POST_IT_COLS.TIMER_IS_REPEATE.ordinal()]) >= 0) data.setTimerIsRepeat(cursor.getInt(i) != 0);
+		if ((i = idx[POST_IT_COLS.TIMER_PATTERN.ordinal()]) >= 0) data.setTimerPattern(cursor.getString(i));
+		if ((i = idx[POST_IT_COLS.TIMER_CODE.ordinal()]) >= 0) data.setTimerCode(cursor.isNull(i) ? TimerPattern.NO_CODE : cursor.getLong(i));
+		if ((i = idx[POST_IT_COLS.TIMER.ordinal()]) >= 0) data.setTimer(cursor.getLong(i));
+		if ((i = idx[POST_IT_COLS.MEMO.ordinal()]) >= 0) data.setMemo(cursor.getString(i));
+		if ((i = idx[POST_IT_COLS.REVISION.ordinal()]) >= 0) data.setRevision(cursor.getLong(i));
+		if ((i = idx[POST_IT_COLS.MEMO_PREVIEW.ordinal()]) >= 0) data.setMemoPreview(cursor.getString(i));
+		// @formatter:on
+		data.clearDirty(mMappedMask);
+		return data;
+	}
+}
@@ -1,36 +1,96 @@
 package org.kotemaru.android.postit.data;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
 import android.support.v4.util.LongSparseArray;
 import android.util.Log;
 
 /**
  * 付箋データDB。
  * <li>ContentProviderになっているが公開はしていない。
- * <li>テーブルは１つだけで新規作成、更新、削除、一覧取得の基本動作を行う。
+ * <li>新規作成、更新、削除、一覧取得の基本動作を行う。
+ * <li>MEMOの本文は別テーブルに置き、一覧取得では本文の代わりに先頭部分の MEMO_PREVIEW を返す。
  * <li>
  * @author kotemaru.org
  */
 public class PostItDataProvider extends ContentProvider {
-	private static final String CONTENT_URI_BASE = "content://"
-			+ PostItDataProvider.class.getCanonicalName().toLowerCase(Locale.US);
+	private static final String TAG = PostItDataProvider.class.getSimpleName();
+
+	public static final String AUTHORITY = PostItDataProvider.class.getCanonicalName().toLowerCase(Locale.US);
+	private static final String CONTENT_URI_BASE = "content://" + AUTHORITY;
 	public static final String MIMETYPE_DIR = "vnd.android.cursor.dir/vnd.kotemaru.postitmain";
 	public static final String MIMETYPE_ITEM = "vnd.android.cursor.item/vnd.kotemaru.postitmain";
 
+	/** 全付箋のURI。変更通知を受ける場合は notifyForDescendants=true で登録すれば個別の付箋の変更も受けられる。 */
 	public static final Uri CONTENT_URI = Uri.parse(CONTENT_URI_BASE);
 
 	private static final String MAIN_TABLE = "POST_IT_MAIN";
+	private static final String MEMO_TABLE = "POST_IT_MEMO";
+	private static final String TIMER_INDEX = "POST_IT_MAIN_TIMER";
+	private static final String REVISION_INDEX = "POST_IT_MAIN_REVISION";
+	private static final String TIMER_CODE_INDEX = "POST_IT_MAIN_TIMER_CODE";
+	private static final String TOMBSTONE_TABLE = "POST_IT_TOMBSTONE";
+	private static final String FTS_TABLE = "POST_IT_FTS";
+	private static final String SEARCH_PATH = "search";
+	/** 個別の付箋のURIのベース。content://.../POST_IT_MAIN/{id} */
+	private static final Uri ITEM_URI_BASE = Uri.parse(CONTENT_URI_BASE + '/' + MAIN_TABLE);
+
+	private static final int MATCH_DIR = 1;
+	private static final int MATCH_ITEM = 2;
+	private static final int MATCH_SEARCH = 3;
+	private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+	static {
+		sUriMatcher.addURI(AUTHORITY, null, MATCH_DIR);
+		sUriMatcher.addURI(AUTHORITY, MAIN_TABLE, MATCH_DIR);
+		sUriMatcher.addURI(AUTHORITY, MAIN_TABLE + "/#", MATCH_ITEM);
+		sUriMatcher.addURI(AUTHORITY, SEARCH_PATH, MATCH_SEARCH);
+	}
+
+	/** query()のURIパラメータ。取得件数の上限。 */
+	public static final String PARAM_LIMIT = "limit";
+	/**
+	 * query()のURIパラメータ。指定リビジョンより後に変更された付箋のみを返す。
+	 * <li>削除された付箋も _ID と REVISION のみで返す。削除の有無は COL_DELETED で判定する。
+	 */
+	public static final String PARAM_SINCE_REVISION = "sinceRevision";
+	/** PARAM_SINCE_REVISION 指定時の追加カラム。0=更新、1=削除。 */
+	public static final String COL_DELETED = "DELETED";
+	/** 検索URIのパラメータ。検索文字列。 */
+	public static final String PARAM_QUERY = "q";
+	/** 検索結果の追加カラム。関連度。大きい程よく一致する。 */
+	public static final String COL_RANK = "RANK";
+	/** call()のメソッド名。期限切れタイマーの付箋を一括で有効にする。argは現在時刻。 */
+	public static final String METHOD_ENABLE_EXPIRED_TIMER = "enableExpiredTimer";
+	/** call()の結果キー。対象となった付箋IDの配列。 */
+	public static final String KEY_IDS = "ids";
 
 	public interface Column {
 		public String name();
@@ -52,23 +112,39 @@ public class PostItDataProvider extends ContentProvider {
 		TIMER_IS_REPEATE("integer"),  //
 		TIMER_PATTERN("text"),   //
 		TIMER("integer"),   //
-		MEMO("text"), //
+		MEMO("text", false), // 本文は MEMO_TABLE に置く
+		REVISION("integer not null default 0"), // 書き込み毎に採番
+		MEMO_PREVIEW("text"), // MEMOの先頭部分。Providerが設定する
+		TIMER_CODE("integer"), // TIMER_PATTERNのコード。Providerが設定する。TimerPattern.Field参照
 		;
 
 		private String mType;
 		private String mWhere;
+		private boolean mInMainTable;
 
 		POST_IT_COLS(String type) {
+			this(type, true);
+		}
+		POST_IT_COLS(String type, boolean inMainTable) {
 			mType = type;
 			mWhere = name() + "=?";
+			mInMainTable = inMainTable;
 		}
 		@Override
 		public String type() {
 			return mType;
 		}
+		/** @return true=本体テーブルのカラム。falseは別テーブルから副問合せで取得する。 */
+		public boolean isInMainTable() {
+			return mInMainTable;
+		}
 		public String where() {
 			return mWhere;
 		}
+		/** @return PostItDataの変更記録用ビット */
+		public int bit() {
+			return 1 << ordinal();
+		}
 		// @formatter:off
 		public long getLong(Cursor cursor) {return cursor.getLong(cursor.getColumnIndex(name()));}
 		public int getInt(Cursor cursor) {return cursor.getInt(cursor.getColumnIndex(name()));}
@@ -79,16 +155,190 @@ public class PostItDataProvider extends ContentProvider {
         // @formatter:on
 	}
 
+	/**
+	 * 削除記録のテーブル定義。
+	 * <li>差分同期で削除を検出するため、削除された付箋IDと削除時のリビジョンを残す。
+	 */
+	public enum TOMBSTONE_COLS implements Column {
+		_ID("integer primary key"), //
+		REVISION("integer not null"), //
+		;
+
+		private String mType;
+
+		TOMBSTONE_COLS(String type) {
+			mType = type;
+		}
+		@Override
+		public String type() {
+			return mType;
+		}
+		public void put(ContentValues values, long val) {
+			values.put(name(), val);
+		}
+	}
+
+	/**
+	 * MEMO本文のテーブル定義。
+	 * <li>_ID は本体テーブルの付箋ID。本体の削除はトリガーで追従する。
+	 * <li>一覧取得や同期で長いMEMOを読まないよう本体テーブルから分離している。
+	 */
+	public enum MEMO_COLS implements Column {
+		_ID("integer primary key"), //
+		MEMO("text"), //
+		;
+
+		private String mType;
+
+		MEMO_COLS(String type) {
+			mType = type;
+		}
+		@Override
+		public String type() {
+			return mType;
+		}
+		public void put(ContentValues values, long val) {
+			values.put(name(), val);
+		}
+		public void put(ContentValues values, String val) {
+			values.put(name(), val);
+		}
+	}
+
+	/**
+	 * @return 本体テーブルに置くカラム定義
+	 */
+	private static POST_IT_COLS[] getMainColumns() {
+		List<POST_IT_COLS> list = new ArrayList<POST_IT_COLS>();
+		for (POST_IT_COLS col : POST_IT_COLS.values()) {
+			if (col.isInMainTable()) list.add(col);
+		}
+		return list.toArray(new POST_IT_COLS[list.size()]);
+	}
+
 	private static class SqlHelper extends SQLiteOpenHelper {
 		static final String DB_NAME = "post_it.db";
-		static final int VERSION = 100;
+		static final int VERSION = 105;
+		/** 全文検索の分かち書き。日本語を単語分割できる icu を優先し、無ければ simple を使う。 */
+		static final String[] FTS_TOKENIZERS = { "icu", "simple" };
 
 		SqlHelper(Context context) {
 			super(context, DB_NAME, null, VERSION);
 		}
 		@Override
 		public void onCreate(SQLiteDatabase db) {
-			db.execSQL(getCreateTableDDL(MAIN_TABLE, POST_IT_COLS.values()));
+			db.execSQL(getCreateTableDDL(MAIN_TABLE, getMainColumns()));
+			db.execSQL(getCreateTimerIndexDDL());
+			db.execSQL(getCreateRevisionIndexDDL());
+			db.execSQL(getCreateTimerCodeIndexDDL());
+			db.execSQL(getCreateTableDDL(TOMBSTONE_TABLE, TOMBSTONE_COLS.values()));
+			db.execSQL(getCreateTableDDL(MEMO_TABLE, MEMO_COLS.values()));
+			createMemoTriggers(db);
+			createFtsTable(db);
+			createFtsTriggers(db);
+		}
+
+		/**
+		 * 本体テーブルの削除に MEMO_TABLE を追従させるトリガーを作成する。
+		 * <li>REPLACE では DELETE トリガーが動かないので本文は残る。本文は replace() で置き換える。
+		 * @param db
+		 */
+		private void createMemoTriggers(SQLiteDatabase db) {
+			db.execSQL("CREATE TRIGGER " + MEMO_TABLE + "_AD AFTER DELETE ON " + MAIN_TABLE + " BEGIN"
+					+ " DELETE FROM " + MEMO_TABLE + " WHERE " + MEMO_COLS._ID.name() + "=old." + POST_IT_COLS._ID.name() + ";"
+					+ " END;");
+		}
+
+		/**
+		 * MEMOの全文検索用の仮想テーブルを作成する。
+		 * @param db
+		 */
+		private void createFtsTable(SQLiteDatabase db) {
+			String memo = MEMO_COLS.MEMO.name();
+			for (int i = 0; i < FTS_TOKENIZERS.length; i++) {
+				try {
+					db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE + " USING fts4(" + memo
+							+ ", tokenize=" + FTS_TOKENIZERS[i] + ");");
+					break;
+				} catch (SQLiteException e) {
+					if (i == FTS_TOKENIZERS.length - 1) throw e;
+					Log.w(TAG, "FTS tokenizer " + FTS_TOKENIZERS[i] + " unavailable:" + e);
+				}
+			}
+		}
+
+		/**
+		 * 全文検索用の仮想テーブルを MEMO_TABLE と同期させるトリガーを作成し、既存の本文を登録する。
+		 * <li>docid は付箋ID。
+		 * <li>REPLACE では DELETE トリガーが動かないので INSERT トリガーで先に削除する。
+		 * @param db
+		 */
+		private void createFtsTriggers(SQLiteDatabase db) {
+			String memo = MEMO_COLS.MEMO.name();
+			String id = MEMO_COLS._ID.name();
+			db.execSQL("CREATE TRIGGER " + FTS_TABLE + "_AI AFTER INSERT ON " + MEMO_TABLE + " BEGIN"
+					+ " DELETE FROM " + FTS_TABLE + " WHERE docid=new." + id + ";"
+					+ " INSERT INTO " + FTS_TABLE + "(docid," + memo + ") VALUES (new." + id + ",new." + memo + ");"
+					+ " END;");
+			db.execSQL("CREATE TRIGGER " + FTS_TABLE + "_AU AFTER UPDATE OF " + memo + " ON " + MEMO_TABLE + " BEGIN"
+					+ " UPDATE " + FTS_TABLE + " SET " + memo + "=new." + memo + " WHERE docid=new." + id + ";"
+					+ " END;");
+			db.execSQL("CREATE TRIGGER " + FTS_TABLE + "_AD AFTER DELETE ON " + MEMO_TABLE + " BEGIN"
+					+ " DELETE FROM " + FTS_TABLE + " WHERE docid=old." + id + ";"
+					+ " END;");
+			db.execSQL("DELETE FROM " + FTS_TABLE + ";");
+			db.execSQL("INSERT INTO " + FTS_TABLE + "(docid," + memo + ") SELECT " + id + "," + memo
+					+ " FROM " + MEMO_TABLE + ";");
+		}
+
+		private String getCreateRevisionIndexDDL() {
+			return "CREATE INDEX IF NOT EXISTS " + REVISION_INDEX + " ON " + MAIN_TABLE
+					+ '(' + POST_IT_COLS.REVISION.name() + ");";
+		}
+
+		private String getCreateTimerCodeIndexDDL() {
+			return "CREATE INDEX IF NOT EXISTS " + TIMER_CODE_INDEX + " ON " + MAIN_TABLE
+					+ '(' + POST_IT_COLS.TIMER_CODE.name() + ");";
+		}
+
+		/**
+		 * 既存の付箋の TIMER_PATTERN からコードを設定する。
+		 * @param db
+		 */
+		private void updateTimerCodes(SQLiteDatabase db) {
+			String pattern = POST_IT_COLS.TIMER_PATTERN.name();
+			Cursor cursor = db.query(MAIN_TABLE, toProjection(POST_IT_COLS._ID, POST_IT_COLS.TIMER_PATTERN),
+					pattern + " IS NOT NULL", null, null, null, null);
+			try {
+				ContentValues values = new ContentValues();
+				String[] args = new String[1];
+				while (cursor.moveToNext()) {
+					values.clear();
+					POST_IT_COLS.TIMER_PATTERN.put(values, cursor.getString(1));
+					putTimerCode(values);
+					args[0] = Long.toString(cursor.getLong(0));
+					db.update(MAIN_TABLE, values, POST_IT_COLS._ID.where(), args);
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+
+		/**
+		 * タイマー検索用の INDEX 文を生成する。
+		 * <li>(ENABLED, TIMER) の複合インデックス。
+		 * <li>部分インデックスが使える SQLite 3.8 以降(Lollipop以降)はタイマーの有る行のみを対象にする。
+		 * @return SQL文
+		 */
+		private String getCreateTimerIndexDDL() {
+			StringBuilder sbuf = new StringBuilder();
+			sbuf.append("CREATE INDEX IF NOT EXISTS ").append(TIMER_INDEX).append(" ON ").append(MAIN_TABLE);
+			sbuf.append('(').append(POST_IT_COLS.ENABLED.name()).append(',').append(POST_IT_COLS.TIMER.name()).append(')');
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+				sbuf.append(" WHERE ").append(POST_IT_COLS.TIMER_PATTERN.name()).append(" IS NOT NULL");
+			}
+			sbuf.append(';');
+			return sbuf.toString();
 		}
 
 		/**
@@ -110,13 +360,54 @@ public class PostItDataProvider extends ContentProvider {
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			// This is first version.
-			db.execSQL("DELETE TABLE " + MAIN_TABLE + ";");
-			onCreate(db);
+			if (oldVersion < 101) {
+				db.execSQL(getCreateTimerIndexDDL());
+			}
+			if (oldVersion < 102) {
+				POST_IT_COLS col = POST_IT_COLS.REVISION;
+				db.execSQL("ALTER TABLE " + MAIN_TABLE + " ADD COLUMN " + col.name() + ' ' + col.type() + ';');
+				// 既存の付箋は初回の差分同期で全件返るようにリビジョン1とする。
+				db.execSQL("UPDATE " + MAIN_TABLE + " SET " + col.name() + "=1;");
+				db.execSQL(getCreateRevisionIndexDDL());
+				db.execSQL(getCreateTableDDL(TOMBSTONE_TABLE, TOMBSTONE_COLS.values()));
+			}
+			if (oldVersion < 103) {
+				// トリガーと既存の本文の登録は MEMO_TABLE の作成後に行う。
+				createFtsTable(db);
+			}
+			if (oldVersion < 104) {
+				String id = POST_IT_COLS._ID.name();
+				String memo = POST_IT_COLS.MEMO.name();
+				POST_IT_COLS preview = POST_IT_COLS.MEMO_PREVIEW;
+				if (oldVersion >= 103) {
+					db.execSQL("DROP TRIGGER IF EXISTS " + FTS_TABLE + "_AI;");
+					db.execSQL("DROP TRIGGER IF EXISTS " + FTS_TABLE + "_AU;");
+					db.execSQL("DROP TRIGGER IF EXISTS " + FTS_TABLE + "_AD;");
+				}
+				db.execSQL("ALTER TABLE " + MAIN_TABLE + " ADD COLUMN " + preview.name() + ' ' + preview.type() + ';');
+				db.execSQL(getCreateTableDDL(MEMO_TABLE, MEMO_COLS.values()));
+				db.execSQL("INSERT INTO " + MEMO_TABLE + '(' + MEMO_COLS._ID.name() + ',' + MEMO_COLS.MEMO.name() + ")"
+						+ " SELECT " + id + ',' + memo + " FROM " + MAIN_TABLE + ';');
+				// 旧MEMOカラムは削除できないので空にする。
+				db.execSQL("UPDATE " + MAIN_TABLE + " SET " + preview.name() + "=substr(" + memo + ",1,"
+						+ PostItData.MEMO_PREVIEW_LENGTH + ")," + memo + "=NULL;");
+				createMemoTriggers(db);
+				createFtsTriggers(db);
+			}
+			if (oldVersion < 105) {
+				POST_IT_COLS col = POST_IT_COLS.TIMER_CODE;
+				db.execSQL("ALTER TABLE " + MAIN_TABLE + " ADD COLUMN " + col.name() + ' ' + col.type() + ';');
+				updateTimerCodes(db);
+				db.execSQL(getCreateTimerCodeIndexDDL());
+			}
 		}
 	}
 
 	private SqlHelper sqlHelper;
+	/** 一括操作中のスレッドの保留中の変更通知。変更通知はバッチ終了時にURI毎に１回だけ行う。 */
+	private final ThreadLocal<Set<Uri>> mBatchNotify = new ThreadLocal<Set<Uri>>();
+	/** 最後に採番したリビジョン。-1=未初期化。 */
+	private long mRevision = -1;
 
 	@Override
 	public boolean onCreate() {
@@ -124,77 +415,690 @@ public class PostItDataProvider extends ContentProvider {
 		return true;
 	}
 
+	/**
+	 * 個別の付箋のURIを返す。
+	 * @param id 付箋ID
+	 * @return content://.../POST_IT_MAIN/{id}
+	 */
+	public static Uri getItemUri(long id) {
+		return ContentUris.withAppendedId(ITEM_URI_BASE, id);
+	}
+
+	/**
+	 * 検索URIを返す。
+	 * @param text 検索文字列。空白区切りの各語の前方一致のAND検索となる。
+	 * @return content://.../search?q={text}
+	 */
+	public static Uri getSearchUri(String text) {
+		return CONTENT_URI.buildUpon().appendPath(SEARCH_PATH).appendQueryParameter(PARAM_QUERY, text).build();
+	}
+
+	/**
+	 * URIの判定。
+	 * @param uri
+	 * @return MATCH_DIR, MATCH_ITEM または MATCH_SEARCH
+	 * @throws IllegalArgumentException 未知のURI
+	 */
+	private static int match(Uri uri) {
+		int match = sUriMatcher.match(uri);
+		if (match == UriMatcher.NO_MATCH) {
+			throw new IllegalArgumentException("Unknown URI: " + uri);
+		}
+		return match;
+	}
+
+	/**
+	 * 変更通知。バッチ実行中は保留する。
+	 * @param uri
+	 */
+	private void notifyChange(Uri uri) {
+		Set<Uri> pending = mBatchNotify.get();
+		if (pending != null) {
+			pending.add(uri);
+			return;
+		}
+		getContext().getContentResolver().notifyChange(uri, null);
+	}
+	/**
+	 * 変更通知の保留を開始する。
+	 */
+	private void beginBatchNotify() {
+		mBatchNotify.set(new LinkedHashSet<Uri>());
+	}
+	/**
+	 * 変更通知の保留を終了する。
+	 * @param commit true=保留していた変更通知を行う。false=破棄する。
+	 */
+	private void endBatchNotify(boolean commit) {
+		Set<Uri> pending = mBatchNotify.get();
+		mBatchNotify.remove();
+		if (!commit || pending == null) return;
+		for (Uri uri : pending) {
+			notifyChange(uri);
+		}
+	}
+
+	/**
+	 * リビジョンの採番。
+	 * <li>初回はDBに残っている最大のリビジョンから始める。
+	 * @param db
+	 * @return 新しいリビジョン
+	 */
+	private synchronized long nextRevision(SQLiteDatabase db) {
+		if (mRevision < 0) {
+			String rev = POST_IT_COLS.REVISION.name();
+			mRevision = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(R),0) FROM ("
+					+ "SELECT MAX(" + rev + ") AS R FROM " + MAIN_TABLE
+					+ " UNION ALL SELECT MAX(" + rev + ") FROM " + TOMBSTONE_TABLE + ")", null);
+		}
+		return ++mRevision;
+	}
+
+	/**
+	 * リビジョンを付けて REPLACE する。同じIDの削除記録は消す。
+	 * <li>MEMOは MEMO_TABLE に REPLACE し、本体テーブルには MEMO_PREVIEW を設定する。
+	 * <li>MEMOが無いかnullの場合は MEMO_TABLE は変更しない。MEMOを読まずに取得した付箋データでMEMOを消さないため。
+	 * <li>TIMER_CODE は TIMER_PATTERN から設定する。
+	 * @param db
+	 * @param values DBレコード。変更しない。
+	 * @return 付箋ID。失敗時は-1。
+	 */
+	private long replace(SQLiteDatabase db, ContentValues values) {
+		values = new ContentValues(values);
+		String memo = values.getAsString(POST_IT_COLS.MEMO.name());
+		values.remove(POST_IT_COLS.MEMO.name());
+		if (memo != null) POST_IT_COLS.MEMO_PREVIEW.put(values, PostItData.toMemoPreview(memo));
+		putTimerCode(values);
+		POST_IT_COLS.REVISION.put(values, nextRevision(db));
+		long id = db.replace(MAIN_TABLE, null, values);
+		if (id != -1) {
+			if (memo != null) replaceMemo(db, id, memo);
+			db.delete(TOMBSTONE_TABLE, WHERE_TOMBSTONE_ID, new String[] { Long.toString(id) });
+		}
+		return id;
+	}
+	private static final String WHERE_TOMBSTONE_ID = TOMBSTONE_COLS._ID.name() + "=?";
+
+	/**
+	 * TIMER_PATTERN を含む場合は TIMER_CODE を設定する。
+	 * <li>不正なパターンのコードは NULL とする。
+	 * @param values DBレコード
+	 */
+	private static void putTimerCode(ContentValues values) {
+		if (!values.containsKey(POST_IT_COLS.TIMER_PATTERN.name())) return;
+		String pattern = values.getAsString(POST_IT_COLS.TIMER_PATTERN.name());
+		long code;
+		try {
+			code = TimerPattern.toCode(pattern);
+		} catch (IllegalArgumentException e) {
+			Log.w(TAG, "Bad timer pattern:" + pattern);
+			code = TimerPattern.NO_CODE;
+		}
+		if (code == TimerPattern.NO_CODE) {
+			values.putNull(POST_IT_COLS.TIMER_CODE.name());
+		} else {
+			POST_IT_COLS.TIMER_CODE.put(values, code);
+		}
+	}
+
+	/**
+	 * MEMO本文の REPLACE。全文検索の索引はトリガーで追従する。
+	 * @param db
+	 * @param id 付箋ID
+	 * @param memo MEMO本文
+	 */
+	private static void replaceMemo(SQLiteDatabase db, long id, String memo) {
+		ContentValues values = new ContentValues();
+		MEMO_COLS._ID.put(values, id);
+		MEMO_COLS.MEMO.put(values, memo);
+		db.replace(MEMO_TABLE, null, values);
+	}
+
+	/**
+	 * 登録。
+	 * <li>変更通知は登録した付箋のURIに対して行う。
+	 * @return 登録した付箋のURI
+	 */
 	@Override
 	public Uri insert(Uri uri, ContentValues values) {
+		if (match(uri) != MATCH_DIR) {
+			throw new IllegalArgumentException("Cannot insert into URI: " + uri);
+		}
 		SQLiteDatabase db = sqlHelper.getWritableDatabase();
-		long id = db.replace(MAIN_TABLE, null, values);
-		getContext().getContentResolver().notifyChange(uri, null);
-		return Uri.parse(CONTENT_URI_BASE + '/' + MAIN_TABLE + '/' + id);
+		long id;
+		db.beginTransaction();
+		try {
+			id = replace(db, values);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		if (id == -1) return null;
+		Uri itemUri = getItemUri(id);
+		notifyChange(itemUri);
+		return itemUri;
+	}
+
+	/**
+	 * 一括登録。
+	 * <li>１トランザクションで REPLACE し、変更通知は最後に付箋毎に１回だけ行う。
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] valuesArray) {
+		if (match(uri) != MATCH_DIR) {
+			throw new IllegalArgumentException("Cannot insert into URI: " + uri);
+		}
+		SQLiteDatabase db = sqlHelper.getWritableDatabase();
+		int n = 0;
+		boolean success = false;
+		beginBatchNotify();
+		db.beginTransaction();
+		try {
+			for (ContentValues values : valuesArray) {
+				long id = replace(db, values);
+				if (id != -1) {
+					notifyChange(getItemUri(id));
+					n++;
+				}
+			}
+			db.setTransactionSuccessful();
+			success = true;
+		} finally {
+			db.endTransaction();
+			endBatchNotify(success);
+		}
+		return n;
+	}
+
+	/**
+	 * 一括操作。
+	 * <li>すべての操作を１トランザクションで実行し、変更通知は最後にURI毎に１回だけ行う。
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+			throws OperationApplicationException {
+		SQLiteDatabase db = sqlHelper.getWritableDatabase();
+		ContentProviderResult[] results;
+		boolean success = false;
+		beginBatchNotify();
+		db.beginTransaction();
+		try {
+			results = super.applyBatch(operations);
+			db.setTransactionSuccessful();
+			success = true;
+		} finally {
+			db.endTransaction();
+			endBatchNotify(success);
+		}
+		return results;
 	}
 
+	@Override
+	public Bundle call(String method, String arg, Bundle extras) {
+		if (METHOD_ENABLE_EXPIRED_TIMER.equals(method)) {
+			Bundle result = new Bundle();
+			result.putLongArray(KEY_IDS, enableExpiredTimer(Long.parseLong(arg)));
+			return result;
+		}
+		return super.call(method, arg, extras);
+	}
+
+	private static final String[] ID_PROJECTION = { POST_IT_COLS._ID.name() };
+	private static final String WHERE_EXPIRED_TIMER = POST_IT_COLS.ENABLED.name() + "=0 AND "
+			+ POST_IT_COLS.TIMER_PATTERN.name() + " IS NOT NULL AND " + POST_IT_COLS.TIMER.name() + "<?";
+
+	/**
+	 * 期限切れタイマーの付箋を１つのUPDATE文で有効にする。
+	 * <li>対象IDの取得と更新は同一トランザクションで行う。
+	 * @param curTime 現在時刻
+	 * @return 有効にした付箋IDの配列
+	 */
+	private long[] enableExpiredTimer(long curTime) {
+		SQLiteDatabase db = sqlHelper.getWritableDatabase();
+		String[] args = { Long.toString(curTime) };
+		long[] ids;
+		db.beginTransaction();
+		try {
+			Cursor cursor = db.query(MAIN_TABLE, ID_PROJECTION, WHERE_EXPIRED_TIMER, args, null, null, null);
+			try {
+				ids = new long[cursor.getCount()];
+				for (int i = 0; cursor.moveToNext(); i++) {
+					ids[i] = cursor.getLong(0);
+				}
+			} finally {
+				cursor.close();
+			}
+			if (ids.length > 0) {
+				ContentValues values = new ContentValues();
+				POST_IT_COLS.ENABLED.put(values, 1);
+				POST_IT_COLS.REVISION.put(values, nextRevision(db));
+				db.update(MAIN_TABLE, values, WHERE_EXPIRED_TIMER, args);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		for (long id : ids) {
+			notifyChange(getItemUri(id));
+		}
+		return ids;
+	}
+
+	/**
+	 * 個別の付箋のURIならば付箋IDの条件を追加した WHERE 句を返す。
+	 * @param uri
+	 * @param selection
+	 * @return WHERE 句
+	 */
+	private static String getSelection(Uri uri, String selection) {
+		if (match(uri) != MATCH_ITEM) return selection;
+		return DatabaseUtils.concatenateWhere(POST_IT_COLS._ID.where(), selection);
+	}
+	/**
+	 * 個別の付箋のURIならば付箋IDを追加した WHERE 句の引数を返す。
+	 * @param uri
+	 * @param selectionArgs
+	 * @return WHERE 句の引数
+	 */
+	private static String[] getSelectionArgs(Uri uri, String[] selectionArgs) {
+		if (match(uri) != MATCH_ITEM) return selectionArgs;
+		return DatabaseUtils.appendSelectionArgs(new String[] { uri.getLastPathSegment() }, selectionArgs);
+	}
+
+	/**
+	 * 更新。
+	 * <li>MEMOを含む場合は対象の付箋IDを先に求め、MEMO_TABLE も同一トランザクションで更新する。
+	 * <li>TIMER_PATTERN を含む場合は TIMER_CODE も更新する。
+	 * <li>個別の付箋のURIならばその付箋のURIに、それ以外は CONTENT_URI に変更通知を行う。
+	 * @return 更新件数
+	 */
 	@Override
 	public int update(Uri uri, ContentValues values, String selection,
 			String[] selectionArgs) {
+		if (match(uri) == MATCH_SEARCH) {
+			throw new IllegalArgumentException("Cannot update URI: " + uri);
+		}
+		selection = getSelection(uri, selection);
+		selectionArgs = getSelectionArgs(uri, selectionArgs);
 		SQLiteDatabase db = sqlHelper.getWritableDatabase();
-		int n = db.update(MAIN_TABLE, values, selection, selectionArgs);
-		getContext().getContentResolver().notifyChange(uri, null);
+		values = new ContentValues(values);
+		boolean hasMemo = values.containsKey(POST_IT_COLS.MEMO.name());
+		String memo = values.getAsString(POST_IT_COLS.MEMO.name());
+		if (hasMemo) {
+			values.remove(POST_IT_COLS.MEMO.name());
+			POST_IT_COLS.MEMO_PREVIEW.put(values, PostItData.toMemoPreview(memo));
+		}
+		putTimerCode(values);
+		int n;
+		db.beginTransaction();
+		try {
+			long[] ids = hasMemo ? queryIds(db, selection, selectionArgs) : null;
+			POST_IT_COLS.REVISION.put(values, nextRevision(db));
+			n = db.update(MAIN_TABLE, values, selection, selectionArgs);
+			if (ids != null) {
+				for (long id : ids) {
+					replaceMemo(db, id, memo);
+				}
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		if (n > 0) notifyChange(match(uri) == MATCH_ITEM ? uri : CONTENT_URI);
 		return n;
 	}
 
+	/**
+	 * 条件に一致する付箋IDの取得。
+	 * @param db
+	 * @param selection
+	 * @param selectionArgs
+	 * @return 付箋IDの配列
+	 */
+	private static long[] queryIds(SQLiteDatabase db, String selection, String[] selectionArgs) {
+		Cursor cursor = db.query(MAIN_TABLE, ID_PROJECTION, selection, selectionArgs, null, null, null);
+		try {
+			long[] ids = new long[cursor.getCount()];
+			for (int i = 0; cursor.moveToNext(); i++) {
+				ids[i] = cursor.getLong(0);
+			}
+			return ids;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * 検索。
+	 * <li>projection が null の場合は MEMO を含む全カラムとなる。MEMOが不要ならば PROJECTION_DEFAULT を明示する。
+	 */
 	@Override
 	public Cursor query(Uri uri, String[] projection, String selection,
 			String[] selectionArgs, String sortOrder) {
+		if (projection == null) projection = PROJECTION_ALL;
+		if (match(uri) == MATCH_SEARCH) {
+			return querySearch(uri, projection, uri.getQueryParameter(PARAM_QUERY));
+		}
+		String since = uri.getQueryParameter(PARAM_SINCE_REVISION);
+		if (since != null && match(uri) == MATCH_DIR) {
+			return queryChanges(uri, projection, Long.parseLong(since));
+		}
+		selection = getSelection(uri, selection);
+		selectionArgs = getSelectionArgs(uri, selectionArgs);
 		SQLiteDatabase db = sqlHelper.getReadableDatabase();
+		String limit = uri.getQueryParameter(PARAM_LIMIT);
 		Cursor cursor = db.query(MAIN_TABLE,
-				projection, selection, selectionArgs, null, null, sortOrder);
+				toColumnExprs(projection), selection, selectionArgs, null, null, sortOrder, limit);
+		cursor.setNotificationUri(getContext().getContentResolver(), uri);
+		return cursor;
+	}
+
+	private static final String MEMO_EXPR = "(SELECT " + MEMO_COLS.MEMO.name() + " FROM " + MEMO_TABLE
+			+ " WHERE " + MEMO_TABLE + '.' + MEMO_COLS._ID.name() + '=' + MAIN_TABLE + '.' + POST_IT_COLS._ID.name()
+			+ ") AS " + POST_IT_COLS.MEMO.name();
+
+	/**
+	 * プロジェクションのカラム名を SELECT 句の式に変換する。
+	 * <li>本体テーブルのカラムはテーブル名で修飾する。
+	 * <li>MEMOは MEMO_TABLE からの副問合せとする。
+	 * @param projection カラム名
+	 * @return SELECT 句の式
+	 */
+	private static String[] toColumnExprs(String[] projection) {
+		String[] exprs = new String[projection.length];
+		for (int i = 0; i < projection.length; i++) {
+			String col = projection[i];
+			if (POST_IT_COLS.MEMO.name().equals(col)) {
+				exprs[i] = MEMO_EXPR;
+			} else {
+				exprs[i] = MAIN_TABLE + '.' + col + " AS " + col;
+			}
+		}
+		return exprs;
+	}
+
+	/**
+	 * 検索文字列から MATCH 句を生成する。
+	 * <li>空白で区切った各語を前方一致のフレーズとし、すべてを含むものを検索する。
+	 * <li>FTSの演算子は語として扱われる。
+	 * <li>文字も数字も含まない語(記号のみの語)は検索語にならないので除く。
+	 * @param text 検索文字列
+	 * @return MATCH 句。検索語が無ければnull。
+	 */
+	private static String toMatchQuery(String text) {
+		if (text == null) return null;
+		StringBuilder sbuf = new StringBuilder();
+		for (String word : text.split("[\\s\u3000]+")) {
+			word = word.replace("\"", "");
+			if (!hasLetterOrDigit(word)) continue;
+			if (sbuf.length() > 0) sbuf.append(' ');
+			sbuf.append('"').append(word).append("*\"");
+		}
+		return sbuf.length() == 0 ? null : sbuf.toString();
+	}
+
+	private static boolean hasLetterOrDigit(String word) {
+		for (int i = 0; i < word.length(); ) {
+			int ch = word.codePointAt(i);
+			if (Character.isLetterOrDigit(ch)) return true;
+			i += Character.charCount(ch);
+		}
+		return false;
+	}
+
+	/**
+	 * 全文検索。
+	 * <li>MEMOの全文検索インデックスから前方一致で検索し、関連度の高い順に返す。
+	 * <li>関連度は matchinfo(pcx) から各語の「この付箋での出現数 / 全付箋での出現数」の合計とする。
+	 * <li>limit パラメータは並べ替え後に適用する。
+	 * @param uri
+	 * @param projection 取得するカラム。
+	 * @param text 検索文字列
+	 * @return 検索結果のCursor。COL_RANK カラムが追加される。
+	 */
+	private Cursor querySearch(Uri uri, String[] projection, String text) {
+		String[] columns = Arrays.copyOf(projection, projection.length + 1);
+		columns[projection.length] = COL_RANK;
+		MatrixCursor result = new MatrixCursor(columns);
+		result.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+		String match = toMatchQuery(text);
+		if (match == null) return result;
+
+		StringBuilder sbuf = new StringBuilder();
+		sbuf.append("SELECT ");
+		for (String expr : toColumnExprs(projection)) {
+			sbuf.append(expr).append(',');
+		}
+		sbuf.append("matchinfo(").append(FTS_TABLE).append(",'pcx')");
+		sbuf.append(" FROM ").append(FTS_TABLE).append(" JOIN ").append(MAIN_TABLE);
+		sbuf.append(" ON ").append(MAIN_TABLE).append('.').append(POST_IT_COLS._ID.name());
+		sbuf.append('=').append(FTS_TABLE).append(".docid");
+		sbuf.append(" WHERE ").append(FTS_TABLE).append(" MATCH ?");
+
+		SQLiteDatabase db = sqlHelper.getReadableDatabase();
+		List<Object[]> rows = new ArrayList<Object[]>();
+		Cursor cursor = db.rawQuery(sbuf.toString(), new String[] { match });
+		try {
+			int n = projection.length;
+			while (cursor.moveToNext()) {
+				Object[] row = new Object[n + 1];
+				for (int i = 0; i < n; i++) {
+					switch (cursor.getType(i)) {
+					case Cursor.FIELD_TYPE_INTEGER:
+						row[i] = cursor.getLong(i);
+						break;
+					case Cursor.FIELD_TYPE_FLOAT:
+						row[i] = cursor.getDouble(i);
+						break;
+					case Cursor.FIELD_TYPE_STRING:
+						row[i] = cursor.getString(i);
+						break;
+					case Cursor.FIELD_TYPE_BLOB:
+						row[i] = cursor.getBlob(i);
+						break;
+					default:
+						row[i] = null;
+					}
+				}
+				row[n] = rank(cursor.getBlob(n));
+				rows.add(row);
+			}
+		} finally {
+			cursor.close();
+		}
+
+		final int rankIndex = projection.length;
+		Collections.sort(rows, new Comparator<Object[]>() {
+			@Override
+			public int compare(Object[] lhs, Object[] rhs) {
+				return Double.compare((Double) rhs[rankIndex], (Double) lhs[rankIndex]);
+			}
+		});
+		String limitParam = uri.getQueryParameter(PARAM_LIMIT);
+		int limit = (limitParam == null) ? rows.size() : Math.min(rows.size(), Integer.parseInt(limitParam));
+		for (int i = 0; i < limit; i++) {
+			result.addRow(rows.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 * matchinfo(pcx) から関連度を計算する。
+	 * <li>matchinfo はネイティブバイトオーダーの32bit整数の配列。
+	 * <li>先頭から フレーズ数p, カラム数c, 以降フレーズ×カラム毎に (この行の出現数, 全行の出現数, 出現行数)。
+	 * @param matchinfo
+	 * @return 関連度
+	 */
+	private static double rank(byte[] matchinfo) {
+		IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+		int phrases = info.get(0);
+		int cols = info.get(1);
+		double score = 0;
+		for (int p = 0; p < phrases; p++) {
+			for (int c = 0; c < cols; c++) {
+				int base = 2 + (p * cols + c) * 3;
+				int hitsThisRow = info.get(base);
+				int hitsAllRows = info.get(base + 1);
+				if (hitsThisRow > 0) score += (double) hitsThisRow / hitsAllRows;
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * 指定リビジョンより後に変更された付箋と削除された付箋をリビジョン順に返す。
+	 * <li>削除された付箋は _ID と REVISION 以外のカラムは null となる。
+	 * @param uri
+	 * @param projection 取得するカラム。REVISIONは常に含まれる。
+	 * @param since リビジョン
+	 * @return 変更された付箋のCursor。COL_DELETED カラムが追加される。
+	 */
+	private Cursor queryChanges(Uri uri, String[] projection, long since) {
+		String rev = POST_IT_COLS.REVISION.name();
+		if (!Arrays.asList(projection).contains(rev)) {
+			projection = Arrays.copyOf(projection, projection.length + 1);
+			projection[projection.length - 1] = rev;
+		}
+		StringBuilder sbuf = new StringBuilder();
+		sbuf.append("SELECT ");
+		for (String expr : toColumnExprs(projection)) {
+			sbuf.append(expr).append(',');
+		}
+		sbuf.append("0 AS ").append(COL_DELETED);
+		sbuf.append(" FROM ").append(MAIN_TABLE).append(" WHERE ").append(MAIN_TABLE).append('.').append(rev).append(">?1");
+		sbuf.append(" UNION ALL SELECT ");
+		for (String col : projection) {
+			if (TOMBSTONE_COLS._ID.name().equals(col) || TOMBSTONE_COLS.REVISION.name().equals(col)) {
+				sbuf.append(col).append(',');
+			} else {
+				sbuf.append("NULL AS ").append(col).append(',');
+			}
+		}
+		sbuf.append("1 FROM ").append(TOMBSTONE_TABLE).append(" WHERE ").append(rev).append(">?1");
+		sbuf.append(" ORDER BY ").append(rev);
+
+		SQLiteDatabase db = sqlHelper.getReadableDatabase();
+		Cursor cursor = db.rawQuery(sbuf.toString(), new String[] { Long.toString(since) });
 		cursor.setNotificationUri(getContext().getContentResolver(), uri);
 		return cursor;
 	}
 
+	/**
+	 * 削除。
+	 * <li>差分同期のため削除した付箋IDを削除記録に残す。
+	 * <li>変更通知は削除した付箋のURI毎に行う。
+	 * @return 削除件数
+	 */
 	@Override
 	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		if (match(uri) == MATCH_SEARCH) {
+			throw new IllegalArgumentException("Cannot delete URI: " + uri);
+		}
+		selection = getSelection(uri, selection);
+		selectionArgs = getSelectionArgs(uri, selectionArgs);
 		SQLiteDatabase db = sqlHelper.getWritableDatabase();
-		db.delete(MAIN_TABLE, selection, selectionArgs);
-		getContext().getContentResolver().notifyChange(uri, null);
-		return 0;
+		long[] ids;
+		int n;
+		db.beginTransaction();
+		try {
+			Cursor cursor = db.query(MAIN_TABLE, ID_PROJECTION, selection, selectionArgs, null, null, null);
+			try {
+				ids = new long[cursor.getCount()];
+				if (ids.length > 0) {
+					ContentValues values = new ContentValues();
+					TOMBSTONE_COLS.REVISION.put(values, nextRevision(db));
+					for (int i = 0; cursor.moveToNext(); i++) {
+						ids[i] = cursor.getLong(0);
+						TOMBSTONE_COLS._ID.put(values, ids[i]);
+						db.replace(TOMBSTONE_TABLE, null, values);
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+			n = db.delete(MAIN_TABLE, selection, selectionArgs);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		for (long id : ids) {
+			notifyChange(getItemUri(id));
+		}
+		return n;
 	}
 
 	@Override
 	public String getType(Uri uri) {
-		List<String> paths = uri.getPathSegments();
-		if (paths.size() >= 2) {
-			return MIMETYPE_ITEM;
-		} else {
+		switch (sUriMatcher.match(uri)) {
+		case MATCH_DIR:
+		case MATCH_SEARCH:
 			return MIMETYPE_DIR;
+		case MATCH_ITEM:
+			return MIMETYPE_ITEM;
+		default:
+			return null;
 		}
 	}
 
 	// --------------------------------------------------------------------------------------------
 	// 以下、コンビニメソッド。
 
+	/** MEMOを除く全カラムのプロジェクション。一覧表示用。 */
+	public static final String[] PROJECTION_DEFAULT = toProjection(getMainColumns());
+	/** MEMOを含む全カラムのプロジェクション。 */
+	public static final String[] PROJECTION_ALL = toProjection(POST_IT_COLS.values());
+	/** タイマー判定に必要なカラムのみのプロジェクション。 */
+	public static final String[] PROJECTION_TIMER = toProjection(
+			POST_IT_COLS._ID, POST_IT_COLS.ENABLED, POST_IT_COLS.TIMER_PATTERN, POST_IT_COLS.TIMER_CODE,
+			POST_IT_COLS.TIMER);
+
+	/**
+	 * カラム定義からプロジェクションを生成する。
+	 * @param columns カラム定義
+	 * @return プロジェクション
+	 */
+	public static String[] toProjection(Column... columns) {
+		String[] projection = new String[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			projection[i] = columns[i].name();
+		}
+		return projection;
+	}
+
 	/**
 	 * DBレコードからBeanに変換する。
 	 * @param cursor
 	 * @return 付箋データBean
 	 */
 	public static PostItData toPostItData(Cursor cursor) {
-		PostItData data = new PostItData(
-				POST_IT_COLS._ID.getLong(cursor),
-				POST_IT_COLS.ENABLED.getInt(cursor),
-				POST_IT_COLS.COLOR.getInt(cursor),
-				POST_IT_COLS.POS_X.getInt(cursor),
-				POST_IT_COLS.POS_Y.getInt(cursor),
-				POST_IT_COLS.WIDTH.getInt(cursor),
-				POST_IT_COLS.HEIGHT.getInt(cursor),
-				POST_IT_COLS.FONT_SIZE.getInt(cursor),
-				POST_IT_COLS.TIMER_IS_REPEATE.getInt(cursor),
-				POST_IT_COLS.TIMER_PATTERN.getString(cursor),
-				POST_IT_COLS.TIMER.getLong(cursor),
-				POST_IT_COLS.MEMO.getString(cursor));
+		return new PostItDataMapper(cursor).map(cursor, null);
+	}
+	/**
+	 * DBレコードのカラム値をBeanに上書きする。レコードに無いカラムは変更しない。
+	 * @param values DBレコード
+	 * @param data 付箋データBean
+	 * @return 付箋データBean
+	 */
+	public static PostItData toPostItData(ContentValues values, PostItData data) {
+		// @formatter:off
+		if (values.containsKey(POST_IT_COLS.ENABLED.name())) data.setEnabled(values.getAsInteger(POST_IT_COLS.ENABLED.name()) != 0);
+		if (values.containsKey(POST_IT_COLS.COLOR.name())) data.setColor(values.getAsInteger(POST_IT_COLS.COLOR.name()));
+		if (values.containsKey(POST_IT_COLS.POS_X.name())) data.setPosX(values.getAsInteger(POST_IT_COLS.POS_X.name()));
+		if (values.containsKey(POST_IT_COLS.POS_Y.name())) data.setPosY(values.getAsInteger(POST_IT_COLS.POS_Y.name()));
+		if (values.containsKey(POST_IT_COLS.WIDTH.name())) data.setWidth(values.getAsInteger(POST_IT_COLS.WIDTH.name()));
+		if (values.containsKey(POST_IT_COLS.HEIGHT.name())) data.setHeight(values.getAsInteger(POST_IT_COLS.HEIGHT.name()));
+		if (values.containsKey(POST_IT_COLS.FONT_SIZE.name())) data.setFontSize(values.getAsInteger(POST_IT_COLS.FONT_SIZE.name()));
+		if (values.containsKey(POST_IT_COLS.TIMER_IS_REPEATE.name())) data.setTimerIsRepeat(values.getAsInteger(POST_IT_COLS.TIMER_IS_REPEATE.name()) != 0);
+		if (values.containsKey(POST_IT_COLS.TIMER_PATTERN.name())) data.setTimerPattern(values.getAsString(POST_IT_COLS.TIMER_PATTERN.name()));
+		if (values.containsKey(POST_IT_COLS.TIMER.name())) data.setTimer(values.getAsLong(POST_IT_COLS.TIMER.name()));
+		if (values.containsKey(POST_IT_COLS.MEMO.name())) data.setMemo(values.getAsString(POST_IT_COLS.MEMO.name()));
+		// @formatter:on
 		return data;
 	}
+
 	/**
 	 * BeanからDBレコードに変換する。
+	 * <li>MEMOを読んでいない(null)付箋データは MEMO_PREVIEW を設定する。REPLACE しても MEMO_TABLE は変更されない。
 	 * @param values DBレコード。nullならば内部で生成。
 	 * @param data 付箋データBean
 	 * @return DBレコード
@@ -213,36 +1117,108 @@ public class PostItDataProvider extends ContentProvider {
 		POST_IT_COLS.TIMER_PATTERN.put(values, data.getTimerPattern());
 		POST_IT_COLS.TIMER.put(values, data.getTimer());
 		POST_IT_COLS.MEMO.put(values, data.getMemo());
+		if (data.getMemo() == null) POST_IT_COLS.MEMO_PREVIEW.put(values, data.getMemoPreview());
+		return values;
+	}
+
+	/**
+	 * Beanの変更されたカラムのみをDBレコードに変換する。_IDは含まない。
+	 * @param values DBレコード。nullならば内部で生成。
+	 * @param data 付箋データBean
+	 * @return DBレコード
+	 */
+	public static ContentValues fromDirtyPostItData(ContentValues values, PostItData data) {
+		if (values == null) values = new ContentValues();
+		// @formatter:off
+		if (data.isDirty(POST_IT_COLS.ENABLED)) POST_IT_COLS.ENABLED.put(values, data.getEnabled());
+		if (data.isDirty(POST_IT_COLS.COLOR)) POST_IT_COLS.COLOR.put(values, data.getColor());
+		if (data.isDirty(POST_IT_COLS.POS_X)) POST_IT_COLS.POS_X.put(values, data.getPosX());
+		if (data.isDirty(POST_IT_COLS.POS_Y)) POST_IT_COLS.POS_Y.put(values, data.getPosY());
+		if (data.isDirty(POST_IT_COLS.WIDTH)) POST_IT_COLS.WIDTH.put(values, data.getWidth());
+		if (data.isDirty(POST_IT_COLS.HEIGHT)) POST_IT_COLS.HEIGHT.put(values, data.getHeight());
+		if (data.isDirty(POST_IT_COLS.FONT_SIZE)) POST_IT_COLS.FONT_SIZE.put(values, data.getFontSize());
+		if (data.isDirty(POST_IT_COLS.TIMER_IS_REPEATE)) POST_IT_COLS.TIMER_IS_REPEATE.put(values, data.getTimerIsRepeat());
+		if (data.isDirty(POST_IT_COLS.TIMER_PATTERN)) POST_IT_COLS.TIMER_PATTERN.put(values, data.getTimerPattern());
+		if (data.isDirty(POST_IT_COLS.TIMER)) POST_IT_COLS.TIMER.put(values, data.getTimer());
+		if (data.isDirty(POST_IT_COLS.MEMO)) POST_IT_COLS.MEMO.put(values, data.getMemo());
+		// @formatter:on
 		return values;
 	}
 
 	/**
 	 * IDから付箋データを取得する。
+	 * <li>キャッシュが読み込み済みならDBは読まない。
 	 * @param context
 	 * @param id 付箋ID
 	 * @return 付箋データ
 	 */
 	public static PostItData getPostItData(Context context, long id) {
-		Cursor cursor = context.getContentResolver().query(PostItDataProvider.CONTENT_URI, null,
-				POST_IT_COLS._ID.where(), new String[] { Long.toString(id) }, null);
-		if (cursor.moveToNext()) {
-			PostItData data = PostItDataProvider.toPostItData(cursor);
-			return data;
+		PostItDataCache cache = PostItDataCache.getInstance();
+		if (cache.isLoaded()) return cache.get(id);
+		Cursor cursor = context.getContentResolver().query(getItemUri(id), PROJECTION_ALL, null, null, null);
+		try {
+			if (cursor.moveToNext()) {
+				PostItData data = PostItDataProvider.toPostItData(cursor);
+				WriteBehindQueue.getInstance(context).applyPending(data);
+				return data;
+			}
+		} finally {
+			cursor.close();
 		}
 		return null;
 	}
 
 	/**
 	 * すべての付箋データを取得する。
+	 * <li>MEMOは読まない。一覧表示には getMemoPreview() を使う。
 	 * @param context
 	 * @return 付箋データのリスト。nullは無い。
 	 */
 	public static List<PostItData> getAllPostItData(Context context) {
+		return getAllPostItData(context, PROJECTION_DEFAULT);
+	}
+
+	/**
+	 * すべての付箋データを指定カラムのみで取得する。
+	 * @param context
+	 * @param projection 取得するカラム。nullはMEMOを含む全カラム。
+	 * @return 付箋データのリスト。nullは無い。
+	 */
+	public static List<PostItData> getAllPostItData(Context context, String[] projection) {
 		List<PostItData> list = new ArrayList<PostItData>();
-		Cursor cursor = context.getContentResolver().query(PostItDataProvider.CONTENT_URI, null, null, null, null);
+		Cursor cursor = context.getContentResolver().query(PostItDataProvider.CONTENT_URI, projection, null, null, null);
 		try {
+			WriteBehindQueue queue = WriteBehindQueue.getInstance(context);
+			boolean hasPending = !queue.isEmpty();
+			PostItDataMapper mapper = new PostItDataMapper(cursor);
 			while (cursor.moveToNext()) {
-				PostItData data = PostItDataProvider.toPostItData(cursor);
+				PostItData data = mapper.map(cursor, null);
+				if (hasPending) queue.applyPending(data);
+				list.add(data);
+			}
+		} finally {
+			cursor.close();
+		}
+		return list;
+	}
+
+	/**
+	 * 付箋データのMEMOを全文検索する。
+	 * <li>結果にMEMOは含まない。一覧表示には getMemoPreview() を使う。
+	 * @param context
+	 * @param text 検索文字列。空白区切りの各語の前方一致のAND検索となる。
+	 * @return 関連度の高い順の付箋データのリスト。nullは無い。
+	 */
+	public static List<PostItData> searchPostItData(Context context, String text) {
+		List<PostItData> list = new ArrayList<PostItData>();
+		Cursor cursor = context.getContentResolver().query(getSearchUri(text), PROJECTION_DEFAULT, null, null, null);
+		try {
+			WriteBehindQueue queue = WriteBehindQueue.getInstance(context);
+			boolean hasPending = !queue.isEmpty();
+			PostItDataMapper mapper = new PostItDataMapper(cursor);
+			while (cursor.moveToNext()) {
+				PostItData data = mapper.map(cursor, null);
+				if (hasPending) queue.applyPending(data);
 				list.add(data);
 			}
 		} finally {
@@ -258,62 +1234,189 @@ public class PostItDataProvider extends ContentProvider {
 	 * @return 付箋IDをキーとする付箋データのマップ。nullは無い。
 	 */
 	public static LongSparseArray<PostItData> getPostItDataMap(Context context, long curTime) {
+		return getPostItDataMap(context, curTime, null);
+	}
+
+	/**
+	 * すべての付箋データをマップで取得する。
+	 * <li>recycle に同じIDの付箋データが有ればそのインスタンスに上書きして再利用する。
+	 * <li>キャッシュが読み込み済みならDBは読まない。タイマーの更新も必要な時だけ行う。
+	 * <li>未読み込みならDBから読み込んでキャッシュに載せる。
+	 * @param context
+	 * @param curTime
+	 * @param recycle 再利用する付箋データのマップ。null可。
+	 * @return 付箋IDをキーとする付箋データのマップ。nullは無い。
+	 */
+	public static LongSparseArray<PostItData> getPostItDataMap(Context context, long curTime,
+			LongSparseArray<PostItData> recycle) {
+		PostItDataCache cache = PostItDataCache.getInstance();
+		if (curTime > 0 && cache.hasExpiredTimer(curTime)) updateTimer(context, curTime);
+		if (cache.isLoaded()) return cache.getPostItDataMap(recycle);
+
+		long generation = cache.getGeneration();
 		LongSparseArray<PostItData> map = new LongSparseArray<PostItData>();
 		ContentResolver content = context.getContentResolver();
-		Cursor cursor = content.query(PostItDataProvider.CONTENT_URI, null, null, null, null);
+		Cursor cursor = content.query(PostItDataProvider.CONTENT_URI, PROJECTION_ALL, null, null, null);
 		try {
-			ContentValues values = new ContentValues();
+			WriteBehindQueue queue = WriteBehindQueue.getInstance(context);
+			boolean hasPending = !queue.isEmpty();
+			PostItDataMapper mapper = new PostItDataMapper(cursor);
+			int idIndex = cursor.getColumnIndex(POST_IT_COLS._ID.name());
 			while (cursor.moveToNext()) {
-				PostItData data = PostItDataProvider.toPostItData(cursor);
+				PostItData data = (recycle == null) ? null : recycle.get(cursor.getLong(idIndex));
+				data = mapper.map(cursor, data);
+				if (hasPending) queue.applyPending(data);
 				map.put(data.getId(), data);
-				if (curTime > 0 && !data.isEnabled()
-						&& data.getTimerPattern() != null && curTime > data.getTimer()) {
-					data.setEnabled(true);
-					content.insert(CONTENT_URI, fromPostItData(values, data));
-				}
 			}
 		} finally {
 			cursor.close();
 		}
+		if (cache.load(map, generation)) AlarmScheduler.getInstance().reprogram(context);
 		return map;
 	}
 
+	/**
+	 * 指定リビジョンより後の付箋データの差分を取得する。
+	 * <li>変更された行と削除記録のみを読むので、処理量は付箋の総数ではなく変更数に比例する。
+	 * <li>付箋Viewの表示に使うのでMEMOも読む。
+	 * <li>リビジョン0の場合は全件となるので、キャッシュが未読み込みならキャッシュにも載せる。
+	 * @param context
+	 * @param curTime 現在時刻。0以下ならタイマーの更新はしない。
+	 * @param sinceRevision 前回取得した差分のリビジョン。初回は0。
+	 * @return 差分。nullは無い。
+	 */
+	public static PostItDataChanges getPostItDataChanges(Context context, long curTime, long sinceRevision) {
+		PostItDataCache cache = PostItDataCache.getInstance();
+		if (curTime > 0 && cache.hasExpiredTimer(curTime)) updateTimer(context, curTime);
+
+		long generation = cache.getGeneration();
+		PostItDataChanges changes = new PostItDataChanges(sinceRevision);
+		Uri uri = CONTENT_URI.buildUpon()
+				.appendQueryParameter(PARAM_SINCE_REVISION, Long.toString(sinceRevision)).build();
+		Cursor cursor = context.getContentResolver().query(uri, PROJECTION_ALL, null, null, null);
+		try {
+			WriteBehindQueue queue = WriteBehindQueue.getInstance(context);
+			boolean hasPending = !queue.isEmpty();
+			PostItDataMapper mapper = new PostItDataMapper(cursor);
+			int idIndex = cursor.getColumnIndex(POST_IT_COLS._ID.name());
+			int revisionIndex = cursor.getColumnIndex(POST_IT_COLS.REVISION.name());
+			int deletedIndex = cursor.getColumnIndex(COL_DELETED);
+			while (cursor.moveToNext()) {
+				if (cursor.getInt(deletedIndex) != 0) {
+					changes.addRemoved(cursor.getLong(idIndex), cursor.getLong(revisionIndex));
+					continue;
+				}
+				PostItData data = mapper.map(cursor, null);
+				if (hasPending) queue.applyPending(data);
+				changes.addUpdated(data);
+			}
+		} finally {
+			cursor.close();
+		}
+		if (sinceRevision == 0 && !cache.isLoaded()) {
+			if (cache.load(changes.getUpdated(), generation)) AlarmScheduler.getInstance().reprogram(context);
+		}
+		return changes;
+	}
+
 	/**
 	 * 付箋データの一覧から一括更新。
+	 * <li>１トランザクションで更新する。
 	 * @param context
 	 * @param list 付箋データの一覧
 	 */
 	public static void setAllPostItData(Context context, List<PostItData> list) {
-		ContentResolver content = context.getContentResolver();
-		ContentValues values = new ContentValues();
+		List<ContentValues> valuesList = new ArrayList<ContentValues>(list.size());
+		for (PostItData data : list) {
+			valuesList.add(PostItDataProvider.fromPostItData(null, data));
+		}
+		bulkInsert(context.getContentResolver(), valuesList);
+		PostItDataCache cache = PostItDataCache.getInstance();
 		for (PostItData data : list) {
-			content.insert(PostItDataProvider.CONTENT_URI, PostItDataProvider.fromPostItData(values, data));
+			cache.put(data);
 		}
+		AlarmScheduler.getInstance().reprogram(context);
+	}
+
+	/**
+	 * DBレコードの一括登録。空ならば何もしない。
+	 * @param content
+	 * @param valuesList DBレコードの一覧
+	 */
+	private static void bulkInsert(ContentResolver content, List<ContentValues> valuesList) {
+		if (valuesList.isEmpty()) return;
+		content.bulkInsert(CONTENT_URI, valuesList.toArray(new ContentValues[valuesList.size()]));
 	}
 
 	/**
 	 * 付箋データの新規作成。
 	 * @param context
 	 * @param data 元になる付箋データ。IDは無視。
-	 * @return 生成された付箋ID
+	 * @return 生成された付箋ID。失敗時は-1。
 	 */
 	public static long createPostItData(Context context, PostItData data) {
 		ContentResolver content = context.getContentResolver();
 		ContentValues values = PostItDataProvider.fromPostItData(null, data);
 		values.remove(POST_IT_COLS._ID.name());
 		Uri uri = content.insert(PostItDataProvider.CONTENT_URI, values);
-		long id = Long.parseLong(uri.getLastPathSegment());
+		if (uri == null) return -1;
+		long id = ContentUris.parseId(uri);
+		PostItData cached = new PostItData(data);
+		cached.setId(id);
+		PostItDataCache.getInstance().put(cached);
+		AlarmScheduler.getInstance().reprogram(context);
 		return id;
 	}
 
 	/**
 	 * 付箋データの更新。
+	 * <li>変更されたカラムのみを UPDATE する。変更が無ければ何もしない。
+	 * <li>レコードが存在しない場合は全カラムで登録し直す。
+	 * <li>遅延書き込みキューに未書き込みの変更が有れば一緒に書き込む。
 	 * @param context
 	 * @param data 付箋データ
+	 * @return true=DBを更新した。
 	 */
-	public static void updatePostItData(Context context, PostItData data) {
+	public static boolean updatePostItData(Context context, PostItData data) {
+		ContentValues values = WriteBehindQueue.getInstance(context).take(data.getId());
+		if (values == null) {
+			if (!data.isDirty()) return false;
+			values = new ContentValues();
+		}
 		ContentResolver content = context.getContentResolver();
-		content.insert(PostItDataProvider.CONTENT_URI, PostItDataProvider.fromPostItData(null, data));
+		int n = content.update(getItemUri(data.getId()), fromDirtyPostItData(values, data), null, null);
+		if (n == 0) {
+			content.insert(PostItDataProvider.CONTENT_URI, PostItDataProvider.fromPostItData(null, data));
+			PostItDataCache.getInstance().put(data);
+		} else {
+			PostItDataCache.getInstance().merge(data.getId(), values);
+		}
+		AlarmScheduler.getInstance().reprogram(context);
+		data.clearDirty();
+		return true;
+	}
+
+	/**
+	 * 付箋データの遅延更新。
+	 * <li>変更されたカラムを遅延書き込みキューに積み、まとめて書き込む。
+	 * <li>書き込み前でも取得系メソッドの結果には反映される。
+	 * @param context
+	 * @param data 付箋データ
+	 * @return true=キューに積んだ。false=変更無し。
+	 */
+	public static boolean updatePostItDataLater(Context context, PostItData data) {
+		if (!data.isDirty()) return false;
+		PostItDataCache.getInstance().merge(data.getId(), fromDirtyPostItData(null, data));
+		AlarmScheduler.getInstance().reprogram(context);
+		return WriteBehindQueue.getInstance(context).enqueue(data);
+	}
+
+	/**
+	 * 遅延書き込みキューの未書き込みの変更を直ちに書き込む。完了は待たない。
+	 * @param context
+	 */
+	public static void flushPostItData(Context context) {
+		WriteBehindQueue.getInstance(context).flush();
 	}
 	/**
 	 * 付箋データの削除。
@@ -321,33 +1424,54 @@ public class PostItDataProvider extends ContentProvider {
 	 * @param data 付箋データ。使うのはIDだけ。
 	 */
 	public static void removePostItData(Context context, PostItData data) {
+		WriteBehindQueue.getInstance(context).take(data.getId());
 		ContentResolver content = context.getContentResolver();
-		content.delete(PostItDataProvider.CONTENT_URI, POST_IT_COLS._ID.where(),
-				new String[] { Long.toString(data.getId()) });
+		content.delete(getItemUri(data.getId()), null, null);
+		PostItDataCache.getInstance().remove(data.getId());
+		AlarmScheduler.getInstance().reprogram(context);
 	}
 
-	private static final String[] WHERE_ENABLED_ARGS = new String[] { "0" };
+	private static final String WHERE_PENDING_TIMER = POST_IT_COLS.ENABLED.name() + "=0 AND "
+			+ POST_IT_COLS.TIMER_PATTERN.name() + " IS NOT NULL";
+	private static final Uri NEXT_TIMER_URI = CONTENT_URI.buildUpon().appendQueryParameter(PARAM_LIMIT, "1").build();
 
 	/**
-	 * タイマーの設定されている付箋で現在時刻を過ぎたものを有効にする。
+	 * 次に発火するタイマーの付箋を取得する。
+	 * <li>非表示でタイマーの設定されている付箋の内、一番早いもの１件をインデックスで検索する。
+	 * <li>遅延書き込みキューは反映できないので先に書き込む。
+	 * <li>キャッシュ読み込み済みの場合は AlarmScheduler が保持しているので通常は不要。
 	 * @param context
-	 * @param curTime 現在時刻
+	 * @return タイマー判定用カラムのみの付箋データ。無ければnull。
 	 */
-	public static void updateTimer(Context context, long curTime) {
-		ContentResolver content = context.getContentResolver();
-		Cursor cursor = content.query(CONTENT_URI,
-				null, POST_IT_COLS.ENABLED.where(), WHERE_ENABLED_ARGS, null);
+	public static PostItData getNextTimerPostItData(Context context) {
+		WriteBehindQueue.getInstance(context).flushAndWait();
+		Cursor cursor = context.getContentResolver().query(NEXT_TIMER_URI, PROJECTION_TIMER,
+				WHERE_PENDING_TIMER, null, POST_IT_COLS.TIMER.name());
 		try {
-			ContentValues values = new ContentValues();
-			while (cursor.moveToNext()) {
-				PostItData data = PostItDataProvider.toPostItData(cursor);
-				if (!data.isEnabled() && data.getTimerPattern() != null && curTime > data.getTimer()) {
-					data.setEnabled(true);
-					content.insert(CONTENT_URI, fromPostItData(values, data));
-				}
+			if (cursor.moveToNext()) {
+				return new PostItDataMapper(cursor).map(cursor, null);
 			}
 		} finally {
 			cursor.close();
 		}
+		return null;
+	}
+
+	/**
+	 * タイマーの設定されている付箋で現在時刻を過ぎたものを有効にする。
+	 * <li>Provider側で１つのUPDATE文として実行する。
+	 * <li>有効にした付箋はキャッシュにも反映する。
+	 * @param context
+	 * @param curTime 現在時刻
+	 * @return 有効にした付箋IDの配列。nullは無い。
+	 */
+	public static long[] updateTimer(Context context, long curTime) {
+		Bundle result = context.getContentResolver().call(CONTENT_URI,
+				METHOD_ENABLE_EXPIRED_TIMER, Long.toString(curTime), null);
+		long[] ids = (result == null) ? null : result.getLongArray(KEY_IDS);
+		if (ids == null) ids = new long[0];
+		PostItDataCache.getInstance().setEnabled(ids);
+		AlarmScheduler.getInstance().reprogram(context);
+		return ids;
 	}
 }
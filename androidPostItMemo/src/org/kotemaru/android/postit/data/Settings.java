@@ -21,7 +21,8 @@ public class Settings {
 		/** アプリ初期化フラグ。インストール直後の処理用。 */
 		IS_INITIALIZED, /** 背景画像のURIのSet。書式は "12:00|contents://～" のように 時刻とURIを'|'で接続。 */
 		BACKGROUND_URI_SET, /** トレイ表示を行う操作。"SINGLE_TAP" or "DOUBLE_TAP" */
-		CTRL_ACTION
+		CTRL_ACTION, /** タイマーをまとめて発火する時間幅(秒)。0=まとめない。 */
+		ALARM_WINDOW
 	}
 
 	/** SharedPreferences の値。 */
@@ -29,10 +30,14 @@ public class Settings {
 		SINGLE_TAP, DOUBLE_TAP
 	}
 
+	/** タイマーをまとめて発火する時間幅のデフォルト(秒)。 */
+	public static final int DEFAULT_ALARM_WINDOW = 60;
+
 	private SharedPreferences mSharedPref;
 	private Set<String> mBackgroundUriSet;
 	private String mCtrlAction;
 	private boolean mIsDoubleTapCtrlAction;
+	private int mAlarmWindow;
 
 	public Settings(Context context) {
 		mSharedPref = PreferenceManager.getDefaultSharedPreferences(context);
@@ -81,6 +86,7 @@ public class Settings {
 	public Settings load() {
 		setBackgroundUriSet(getPrefSet(Key.BACKGROUND_URI_SET, null));
 		setCtrlAction(getPrefValue(Key.CTRL_ACTION, Value.SINGLE_TAP));
+		setAlarmWindow(mSharedPref.getInt(Key.ALARM_WINDOW.name(), DEFAULT_ALARM_WINDOW));
 		return this;
 	}
 	/**
@@ -90,6 +96,7 @@ public class Settings {
 		SharedPreferences.Editor editor = mSharedPref.edit();
 		editor.putStringSet(Key.BACKGROUND_URI_SET.name(), getBackgroundUriSet());
 		editor.putString(Key.CTRL_ACTION.name(), getCtrlAction());
+		editor.putInt(Key.ALARM_WINDOW.name(), getAlarmWindow());
 		editor.apply();
 	}
 
@@ -165,6 +172,19 @@ public class Settings {
 		mIsDoubleTapCtrlAction = Value.DOUBLE_TAP.name().equals(ctrlAction);
 	}
 
+	public int getAlarmWindow() {
+		return mAlarmWindow;
+	}
+	/**
+	 * @return タイマーをまとめて発火する時間幅(ms)。
+	 */
+	public long getAlarmWindowMillis() {
+		return mAlarmWindow * 1000L;
+	}
+	public void setAlarmWindow(int alarmWindow) {
+		this.mAlarmWindow = Math.max(0, alarmWindow);
+	}
+
 	public Set<String> getBackgroundUriSet() {
 		return mBackgroundUriSet;
 	}
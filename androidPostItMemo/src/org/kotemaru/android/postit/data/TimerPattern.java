@@ -8,6 +8,9 @@ import org.kotemaru.android.postit.R;
 
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.TimeZone;
 
 /**
  * タイマーパターン。
@@ -25,6 +28,12 @@ import java.util.GregorianCalendar;
  * <li>例："＊＊＊＊/12/＊＊＊/Mon/1 13:00"</li>
  * </ul>
  * </li>
+ * <li>valueOf() は変更不可の共有インスタンスを返す。DatePicker 等で組み立てる場合は new する。</li>
+ * <li>DB上では検索用にビット詰めした整数値(コード)も保存する。<ul>
+ * <li>各フィールドの位置は Field を参照。不定値は 0。</li>
+ * <li>正規化文字列とは相互に変換できる。</li>
+ * </ul>
+ * </li>
  */
 
 public class TimerPattern {
@@ -44,6 +53,56 @@ public class TimerPattern {
 			"", "/1st", "/2nd", "/3rd", "/4th", "/5th"
 	};
 
+	/**
+	 * コード上の各フィールドのビット位置。
+	 * <li>SQLで直接条件を書く場合は sql() を使う。例：毎週月曜日は DAY_OF_WEEK.sql(col)+"=2"</li>
+	 */
+	public enum Field {
+		MINUTE(0, 6), // 0-59
+		HOUR(6, 5), // 0-23
+		DAY_OF_WEEK_IN_MONTH(11, 3), // 1-5, 0=*
+		DAY_OF_WEEK(14, 3), // 1-7, 0=***
+		DATE(17, 5), // 1-31, 0=**
+		MONTH(22, 4), // 1-12, 0=**
+		YEAR(26, 14), // yyyy, 0=****
+		;
+
+		private final int mShift;
+		private final long mMask;
+
+		Field(int shift, int bits) {
+			mShift = shift;
+			mMask = (1L << bits) - 1;
+		}
+		/**
+		 * @param code コード
+		 * @return フィールド値
+		 */
+		public int get(long code) {
+			return (int) ((code >>> mShift) & mMask);
+		}
+		/**
+		 * @param code コード
+		 * @param val フィールド値
+		 * @return フィールド値を設定したコード
+		 * @throws IllegalArgumentException 範囲外の値
+		 */
+		public long put(long code, int val) {
+			if (val < 0 || val > mMask) throw new IllegalArgumentException(name() + "=" + val);
+			return (code & ~(mMask << mShift)) | ((long) val << mShift);
+		}
+		/**
+		 * @param column コードのカラム名
+		 * @return フィールド値を取り出すSQL式
+		 */
+		public String sql(String column) {
+			return "((" + column + ">>" + mShift + ")&" + mMask + ")";
+		}
+	}
+
+	/** パターン無しを表すコード。 */
+	public static final long NO_CODE = -1;
+
 	private int mYear;   // yyyy, 0=****
 	private int mMonth;  // 1-12, 0=**
 	private int mDate;   // 1-31, 0=**
@@ -51,6 +110,20 @@ public class TimerPattern {
 	private int mDayOfWeekInMonth; // 1-5, 0=*
 	private int mHour;
 	private int mMinute;
+	/** true=変更不可。 */
+	private boolean mFrozen;
+
+	/** 共有インスタンスのキャッシュの大きさ。 */
+	private static final int INTERN_SIZE = 32;
+	private static final TimerPattern[] sInternPatterns = new TimerPattern[INTERN_SIZE];
+	private static final long[] sInternCodes = new long[INTERN_SIZE];
+	/** 最後に使った時の sInternClock。LRUの追い出しに使う。 */
+	private static final long[] sInternStamps = new long[INTERN_SIZE];
+	private static long sInternClock;
+	private static int sInternHitCount;
+	private static int sInternMissCount;
+	/** 空のパターンの共有インスタンス。 */
+	private static final TimerPattern EMPTY = new TimerPattern().freeze();
 
 	/**
 	 * 表示用の曜日の配列を返す。
@@ -73,9 +146,133 @@ public class TimerPattern {
 		return new TimerPattern().fromFormalString(formal);
 	}
 
+	/**
+	 * コードからインスタンスを生成する。
+	 * @param code コード。NO_CODE ならば空のパターン。
+	 * @return TimerPatternインスタンス
+	 */
+	public static TimerPattern create(long code) {
+		return new TimerPattern().fromCode(code);
+	}
+
+	/**
+	 * 正規化文字列をコードに変換する。
+	 * @param formal 正規化文字列
+	 * @return コード。null ならば NO_CODE。
+	 * @throws IllegalArgumentException 不正な正規化文字列
+	 */
+	public static long toCode(String formal) throws IllegalArgumentException {
+		if (formal == null) return NO_CODE;
+		return create(formal).toCode();
+	}
+
 	public TimerPattern() {
 	}
 
+	/**
+	 * コードに対応する変更不可の共有インスタンスを返す。
+	 * <li>最近使った INTERN_SIZE 個を保持する。キャッシュに有ればオブジェクトは生成しない。</li>
+	 * <li>検索と登録は１つのロックの中で行うので、同じコードのインスタンスが２つ登録される事は無い。</li>
+	 * @param code コード。NO_CODE ならば空のパターン。
+	 * @return 変更不可の TimerPattern
+	 */
+	public static TimerPattern valueOf(long code) {
+		if (code == NO_CODE) return EMPTY;
+		synchronized (sInternPatterns) {
+			int i = internIndexOf(code);
+			if (i >= 0) return internHit(i);
+			return intern(new TimerPattern().fromCode(code).freeze(), code);
+		}
+	}
+
+	/**
+	 * 正規化文字列に対応する変更不可の共有インスタンスを返す。
+	 * <li>解析した結果のコードをキーにするので、書き方の違う同じパターンは同じインスタンスになる。</li>
+	 * <li>コードに変換できないパターンは共有しない。</li>
+	 * @param formal 正規化文字列。null ならば空のパターン。
+	 * @return 変更不可の TimerPattern
+	 * @throws FormatException 書式エラー
+	 */
+	public static TimerPattern valueOf(String formal) throws FormatException {
+		if (formal == null) return EMPTY;
+		TimerPattern pattern = create(formal).freeze();
+		long code;
+		try {
+			code = pattern.toCode();
+		} catch (IllegalArgumentException e) {
+			return pattern;
+		}
+		synchronized (sInternPatterns) {
+			int i = internIndexOf(code);
+			if (i >= 0) return internHit(i);
+			return intern(pattern, code);
+		}
+	}
+
+	/**
+	 * @return キャッシュ内の位置。無ければ -1。
+	 */
+	private static int internIndexOf(long code) {
+		for (int i = 0; i < INTERN_SIZE; i++) {
+			if (sInternPatterns[i] != null && sInternCodes[i] == code) return i;
+		}
+		return -1;
+	}
+
+	private static TimerPattern internHit(int i) {
+		sInternHitCount++;
+		sInternStamps[i] = ++sInternClock;
+		return sInternPatterns[i];
+	}
+
+	/**
+	 * 共有インスタンスの登録。一番長く使われていないものを追い出す。
+	 * <li>sInternPatterns のロックを取ってから呼ぶこと。</li>
+	 */
+	private static TimerPattern intern(TimerPattern pattern, long code) {
+		sInternMissCount++;
+		int slot = 0;
+		for (int i = 0; i < INTERN_SIZE; i++) {
+			if (sInternPatterns[i] == null) {
+				slot = i;
+				break;
+			}
+			if (sInternStamps[i] < sInternStamps[slot]) slot = i;
+		}
+		sInternPatterns[slot] = pattern;
+		sInternCodes[slot] = code;
+		sInternStamps[slot] = ++sInternClock;
+		return pattern;
+	}
+
+	/** @return valueOf() のキャッシュヒット数 */
+	public static int getInternHitCount() {
+		synchronized (sInternPatterns) {
+			return sInternHitCount;
+		}
+	}
+	/** @return valueOf() のキャッシュミス数 */
+	public static int getInternMissCount() {
+		synchronized (sInternPatterns) {
+			return sInternMissCount;
+		}
+	}
+
+	/**
+	 * 変更不可にする。以降、値を変更するメソッドは IllegalStateException となる。
+	 * @return this
+	 */
+	public TimerPattern freeze() {
+		mFrozen = true;
+		return this;
+	}
+	public boolean isFrozen() {
+		return mFrozen;
+	}
+	private void checkMutable() {
+		if (mFrozen) throw new IllegalStateException("Frozen TimerPattern");
+	}
+
 	/**
 	 * 有効なデータか否かを返す。
 	 * <li>日付が特定できかつ曜日と日の設定が衝突しない事。</li>
@@ -98,28 +295,164 @@ public class TimerPattern {
 
 	/**
 	 * 正規化文字列からデータを設定する。
+	 * <li>split() や部分文字列を使わずに１パスで解析する。</li>
+	 * <li>時刻部分は省略可。その場合は 00:00 となる。</li>
+	 * <li>エラーの場合は何も変更しない。</li>
 	 * @param formal 正規化文字列
 	 * @return this
+	 * @throws FormatException 書式エラー。エラー位置を持つ。
 	 */
-	public TimerPattern fromFormalString(String formal) throws NumberFormatException {
+	public TimerPattern fromFormalString(CharSequence formal) throws FormatException {
+		checkMutable();
 		if (formal == null) return this;
-		String[] date_time = formal.split(" ");
-		String[] dates = date_time[0].split("/");
-		if (dates.length != 5) throw new NumberFormatException(formal);
-		mYear = getIntValue(dates[0]);
-		mMonth = getIntValue(dates[1]);
-		mDate = getIntValue(dates[2]);
-		mDayOfWeek = getWeekValue(dates[3]);
-		mDayOfWeekInMonth = getIntValue(dates[4]);
-
-		if (date_time.length == 1) return this;
-		String[] times = date_time[1].split(":");
-		if (times.length != 2) throw new NumberFormatException(formal);
-		mHour = getIntValue(times[0]);
-		mMinute = getIntValue(times[1]);
+		final int len = formal.length();
+		int pos = 0;
+		int end = indexOf(formal, '/', pos, len);
+		int year = parseField(formal, pos, end);
+		pos = end + 1;
+		end = indexOf(formal, '/', pos, len);
+		int month = parseField(formal, pos, end);
+		pos = end + 1;
+		end = indexOf(formal, '/', pos, len);
+		int date = parseField(formal, pos, end);
+		pos = end + 1;
+		end = indexOf(formal, '/', pos, len);
+		int dayOfWeek = parseDayOfWeek(formal, pos, end);
+		pos = end + 1;
+		end = indexOfOrEnd(formal, ' ', pos, len);
+		int dayOfWeekInMonth = parseField(formal, pos, end);
+
+		int hour = 0;
+		int minute = 0;
+		if (end < len) {
+			pos = end + 1;
+			end = indexOf(formal, ':', pos, len);
+			hour = parseField(formal, pos, end);
+			minute = parseField(formal, end + 1, len);
+		}
+
+		mYear = year;
+		mMonth = month;
+		mDate = date;
+		mDayOfWeek = dayOfWeek;
+		mDayOfWeekInMonth = dayOfWeekInMonth;
+		mHour = hour;
+		mMinute = minute;
 		return this;
 	}
 
+	/**
+	 * 正規化文字列の書式エラー。
+	 * <li>NumberFormatException のサブクラスなので従来の catch で受けられる。</li>
+	 */
+	public static class FormatException extends NumberFormatException {
+		private static final long serialVersionUID = 1L;
+		private final int mErrorOffset;
+
+		public FormatException(CharSequence formal, int errorOffset, String reason) {
+			super(reason + " at " + errorOffset + ": " + formal);
+			mErrorOffset = errorOffset;
+		}
+		/** @return エラー位置。正規化文字列の先頭からの文字数。 */
+		public int getErrorOffset() {
+			return mErrorOffset;
+		}
+	}
+
+	/**
+	 * 区切り文字の位置を返す。
+	 * @return 区切り文字の位置
+	 * @throws FormatException 区切り文字が無い
+	 */
+	private static int indexOf(CharSequence cs, char delim, int from, int to) throws FormatException {
+		int idx = indexOfOrEnd(cs, delim, from, to);
+		if (idx == to) throw new FormatException(cs, to, "Missing '" + delim + "'");
+		return idx;
+	}
+	/**
+	 * @return 区切り文字の位置。無ければ to。
+	 */
+	private static int indexOfOrEnd(CharSequence cs, char delim, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (cs.charAt(i) == delim) return i;
+		}
+		return to;
+	}
+
+	/**
+	 * 数値フィールドの解析。'*' のみならば不定値 0。
+	 * @return フィールド値
+	 * @throws FormatException 空、または数字と '*' 以外の文字を含む
+	 */
+	private static int parseField(CharSequence cs, int from, int to) throws FormatException {
+		if (from >= to) throw new FormatException(cs, from, "Empty field");
+		if (cs.charAt(from) == '*') {
+			for (int i = from + 1; i < to; i++) {
+				if (cs.charAt(i) != '*') throw new FormatException(cs, i, "Expected '*'");
+			}
+			return 0;
+		}
+		if (to - from > 9) throw new FormatException(cs, from, "Too long field");
+		int val = 0;
+		for (int i = from; i < to; i++) {
+			char ch = cs.charAt(i);
+			if (ch < '0' || ch > '9') throw new FormatException(cs, i, "Expected digit");
+			val = val * 10 + (ch - '0');
+		}
+		return val;
+	}
+
+	/**
+	 * 曜日フィールドの解析。DAY_OF_WEEKS のいずれか。
+	 * @return 1-7, 0=不定
+	 * @throws FormatException 未知の曜日
+	 */
+	private static int parseDayOfWeek(CharSequence cs, int from, int to) throws FormatException {
+		for (int i = 0; i < DAY_OF_WEEKS.length; i++) {
+			String name = DAY_OF_WEEKS[i];
+			if (name.length() != to - from) continue;
+			int j = 0;
+			while (j < name.length() && name.charAt(j) == cs.charAt(from + j)) j++;
+			if (j == name.length()) return i;
+		}
+		throw new FormatException(cs, from, "Unknown day of week");
+	}
+
+	/**
+	 * コードからデータを設定する。
+	 * @param code コード。NO_CODE ならば何もしない。
+	 * @return this
+	 */
+	public TimerPattern fromCode(long code) {
+		checkMutable();
+		if (code == NO_CODE) return this;
+		mYear = Field.YEAR.get(code);
+		mMonth = Field.MONTH.get(code);
+		mDate = Field.DATE.get(code);
+		mDayOfWeek = Field.DAY_OF_WEEK.get(code);
+		mDayOfWeekInMonth = Field.DAY_OF_WEEK_IN_MONTH.get(code);
+		mHour = Field.HOUR.get(code);
+		mMinute = Field.MINUTE.get(code);
+		return this;
+	}
+
+	/**
+	 * コードを返す。
+	 * @return コード
+	 * @throws IllegalArgumentException フィールドの値が範囲外
+	 */
+	public long toCode() throws IllegalArgumentException {
+		long code = 0;
+		code = Field.YEAR.put(code, mYear);
+		code = Field.MONTH.put(code, mMonth);
+		code = Field.DATE.put(code, mDate);
+		code = Field.DAY_OF_WEEK.put(code, mDayOfWeek);
+		code = Field.DAY_OF_WEEK_IN_MONTH.put(code, mDayOfWeekInMonth);
+		code = Field.HOUR.put(code, mHour);
+		code = Field.MINUTE.put(code, mMinute);
+		return code;
+	}
+
 	/**
 	 * 現在時刻を設定する。
 	 * @param time 現在時刻(ms)
@@ -127,6 +460,7 @@ public class TimerPattern {
 	 * @throws NumberFormatException
 	 */
 	public TimerPattern fromTime(long time) throws NumberFormatException {
+		checkMutable();
 		Calendar cal = new GregorianCalendar();
 		cal.setTimeInMillis(time);
 		mYear = cal.get(Calendar.YEAR);
@@ -139,20 +473,6 @@ public class TimerPattern {
 		return this;
 	}
 
-	private int getIntValue(String str) {
-		char ch = str.charAt(0);
-		if (ch == '*') return 0;
-		if (ch == '0') str = str.substring(1);
-		return Integer.valueOf(str);
-	}
-
-	private int getWeekValue(String str) {
-		for (int i = 0; i < DAY_OF_WEEKS.length; i++) {
-			if (DAY_OF_WEEKS[i].equals(str)) return i;
-		}
-		return 0;
-	}
-
 	/**
 	 * 正規化文字列を返す
 	 * <li>書式："yyyy/mm/dd/曜日/第n HH:MM"</li>
@@ -162,29 +482,41 @@ public class TimerPattern {
 	 * @return 正規化文字列
 	 */
 	public String toFormalString() {
-		StringBuilder sbuf = new StringBuilder(30);
-		sbuf.append(mYear == 0 ? "****" : Integer.toString(mYear)).append('/');
-		sbuf.append(toIntStr2(mMonth)).append('/');
-		sbuf.append(toIntStr2(mDate)).append('/');
+		return appendFormalString(new StringBuilder(FORMAL_LENGTH)).toString();
+	}
+	private static final int FORMAL_LENGTH = "yyyy/mm/dd/Dow/n HH:MM".length();
+
+	/**
+	 * 正規化文字列を追加する。中間の文字列は生成しない。
+	 * @param sbuf 追加先
+	 * @return sbuf
+	 */
+	public StringBuilder appendFormalString(StringBuilder sbuf) {
+		appendYear(sbuf, mYear).append('/');
+		append2(sbuf, mMonth).append('/');
+		append2(sbuf, mDate).append('/');
 		sbuf.append(DAY_OF_WEEKS[mDayOfWeek]).append('/');
-		sbuf.append(toIntStr1(mDayOfWeekInMonth)).append(' ');
-		sbuf.append(toIntStr00(mHour)).append(':');
-		sbuf.append(toIntStr00(mMinute));
-		return sbuf.toString();
+		append1(sbuf, mDayOfWeekInMonth).append(' ');
+		append00(sbuf, mHour).append(':');
+		append00(sbuf, mMinute);
+		return sbuf;
 	}
 
-	private String toIntStr1(int val) {
-		if (val == 0) return "*";
-		return Integer.toString(val);
+	private static StringBuilder appendYear(StringBuilder sbuf, int val) {
+		if (val == 0) return sbuf.append("****");
+		return sbuf.append(val);
+	}
+	private static StringBuilder append1(StringBuilder sbuf, int val) {
+		if (val == 0) return sbuf.append('*');
+		return sbuf.append(val);
 	}
-	private String toIntStr2(int val) {
-		if (val == 0) return "**";
-		if (val <= 9) return "0" + val;
-		return Integer.toString(val);
+	private static StringBuilder append2(StringBuilder sbuf, int val) {
+		if (val == 0) return sbuf.append("**");
+		return append00(sbuf, val);
 	}
-	private String toIntStr00(int val) {
-		if (val <= 9) return "0" + val;
-		return Integer.toString(val);
+	private static StringBuilder append00(StringBuilder sbuf, int val) {
+		if (val <= 9) sbuf.append('0');
+		return sbuf.append(val);
 	}
 
 	public String toLocaleString(Context context) {
@@ -202,34 +534,35 @@ public class TimerPattern {
 		StringBuilder sbuf = new StringBuilder(30);
 
 		char[] order = android.text.format.DateFormat.getDateFormatOrder(context);
+		String[] dayOfWeeks = getDayOfWeeks(context);
+		if (order[0] != 'y') {
+			sbuf.append(dayOfWeeks[mDayOfWeek]);
+			if (withDayOfWeekInMonth) sbuf.append(DAY_OF_WEEKS_IN_MONTH[mDayOfWeekInMonth]);
+			sbuf.append(", ");
+		}
 		for (char ch : order) {
 			switch (ch) {
 			case 'y':
-				sbuf.append(mYear == 0 ? "****" : Integer.toString(mYear)).append('/');
+				appendYear(sbuf, mYear).append('/');
 				break;
 			case 'M':
-				sbuf.append(toIntStr2(mMonth)).append('/');
+				append2(sbuf, mMonth).append('/');
 				break;
 			case 'd':
-				sbuf.append(toIntStr2(mDate)).append('/');
+				append2(sbuf, mDate).append('/');
 				break;
 			}
 		}
 		sbuf.setLength(sbuf.length() - 1);
-		String[] dayOfWeeks = getDayOfWeeks(context);
-		String dayOfWeek = dayOfWeeks[mDayOfWeek];
-		if (withDayOfWeekInMonth) {
-			dayOfWeek += DAY_OF_WEEKS_IN_MONTH[mDayOfWeekInMonth];
-		}
 		if (order[0] == 'y') {
-			sbuf.append('(').append(dayOfWeek).append(')');
-		} else {
-			sbuf.insert(0, dayOfWeek + ", ");
+			sbuf.append('(').append(dayOfWeeks[mDayOfWeek]);
+			if (withDayOfWeekInMonth) sbuf.append(DAY_OF_WEEKS_IN_MONTH[mDayOfWeekInMonth]);
+			sbuf.append(')');
 		}
 
 		sbuf.append(' ');
-		sbuf.append(toIntStr00(mHour)).append(':');
-		sbuf.append(toIntStr00(mMinute));
+		append00(sbuf, mHour).append(':');
+		append00(sbuf, mMinute);
 		return sbuf.toString();
 	}
 
@@ -237,40 +570,295 @@ public class TimerPattern {
 	 * 次の一致日時を返す。
 	 * <li>このパターンに一致する現在時刻から一番近い日時を返す。</li>
 	 * @return 次の一致日時
+	 * @see #getNextTime(long, TimeZone)
 	 */
 	public Calendar getNextDate() {
 		Calendar cal = new GregorianCalendar();
-		long currentTime = cal.getTimeInMillis();
-
-		if (mYear != 0) cal.set(Calendar.YEAR, mYear);
-		if (mMonth != 0) cal.set(Calendar.MONTH, mMonth - 1);
-		if (mDate != 0) cal.set(Calendar.DAY_OF_MONTH, mDate);
-		if (mDayOfWeek != 0) cal.set(Calendar.DAY_OF_WEEK, mDayOfWeek);
-		cal.set(Calendar.HOUR_OF_DAY, mHour);
-		cal.set(Calendar.MINUTE, mMinute);
-		cal.set(Calendar.SECOND, 0);
-		// Log.d("DEBUG", "Set timer:moto=" + cal.getTime());
-
-		if (mYear != 0 && cal.getTimeInMillis() < currentTime) return cal;
-
-		if (mDayOfWeek != 0) {
-			while (cal.getTimeInMillis() < currentTime)
-				cal.add(Calendar.DATE, 7);
-			if (mDayOfWeekInMonth != 0) {
-				while (mDayOfWeekInMonth != cal.get(Calendar.DAY_OF_WEEK_IN_MONTH)) {
-					cal.add(Calendar.DATE, 7);
+		long time = getNextTime(cal.getTimeInMillis(), cal.getTimeZone());
+		if (time != NO_TIME) cal.setTimeInMillis(time);
+		return cal;
+	}
+
+	/** getNextTime() で一致する日時が無い。 */
+	public static final long NO_TIME = Long.MIN_VALUE;
+	private static final long DAY_MS = 24L * 60 * 60 * 1000;
+	/** グレゴリオ暦の周期(年)。これだけ探して無ければ一致する日は無い。 */
+	private static final int GREGORIAN_CYCLE = 400;
+
+	/**
+	 * 次の一致日時を返す。
+	 * <li>このパターンに一致する now 以降で一番近い日時を返す。</li>
+	 * <li>年が指定されていて一致日時が過ぎている場合はその年の最初の一致日時を返す。</li>
+	 * <li>日付は暦の計算で直接求める。Calendar は使わず、オブジェクトも生成しない。</li>
+	 * <li>有効でないパターン(空のパターンを含む)は一致日時無しとする。</li>
+	 * @param now 現在時刻(ms)
+	 * @param tz タイムゾーン
+	 * @return 次の一致日時(ms)。無ければ NO_TIME。
+	 */
+	public long getNextTime(long now, TimeZone tz) {
+		if (!isValid()) return NO_TIME;
+		long localNow = now + tz.getOffset(now);
+		long ymd = civilFromDays(floorDiv(localNow, DAY_MS));
+		int year = (int) (ymd >> 9);
+		int month = (int) ((ymd >> 5) & 0xF);
+		long time = findNextTime(now, tz, year, month);
+		if (time == NO_TIME && mYear != 0) {
+			time = findNextTime(Long.MIN_VALUE, tz, mYear, 1);
+		}
+		return time;
+	}
+
+	/**
+	 * 指定年月以降で now 以降の一致日時を月単位で探す。
+	 * <li>各月の候補日は月初の曜日から算出するので、１か月あたり高々数回の比較で済む。</li>
+	 * @param now 下限時刻(ms)
+	 * @param tz タイムゾーン
+	 * @param fromYear 探索開始年
+	 * @param fromMonth 探索開始月 1-12
+	 * @return 一致日時(ms)。無ければ NO_TIME。
+	 */
+	private long findNextTime(long now, TimeZone tz, int fromYear, int fromMonth) {
+		int toYear = fromYear + GREGORIAN_CYCLE;
+		if (mYear != 0) {
+			if (mYear < fromYear) return NO_TIME;
+			if (mYear > fromYear) fromMonth = 1;
+			fromYear = toYear = mYear;
+		}
+		long timeOfDay = (mHour * 60L + mMinute) * 60 * 1000;
+		for (int y = fromYear; y <= toYear; y++) {
+			for (int m = (y == fromYear) ? fromMonth : 1; m <= 12; m++) {
+				if (mMonth != 0 && m != mMonth) continue;
+				int lastDay = daysInMonth(y, m);
+				long firstDay = daysFromCivil(y, m, 1);
+				int step = getDayStep();
+				for (int day = getFirstDay(firstDay); day <= lastDay; day += step) {
+					long time = toUtc((firstDay + day - 1) * DAY_MS + timeOfDay, tz);
+					if (time >= now) return time;
+					if (step == 0) break;
 				}
-			} else {
-				while (cal.getTimeInMillis() < currentTime) {
-					cal.add(Calendar.DATE, 7);
+			}
+		}
+		return NO_TIME;
+	}
+
+	/**
+	 * 月内の最初の候補日を返す。
+	 * @param firstDay 月初の 1970/01/01 からの日数
+	 * @return 日。月の日数を超える場合はその月に候補日は無い。
+	 */
+	private int getFirstDay(long firstDay) {
+		if (mDate != 0) return mDate;
+		int day = 1 + floorMod(mDayOfWeek - dayOfWeek(firstDay), 7);
+		if (mDayOfWeekInMonth != 0) day += (mDayOfWeekInMonth - 1) * 7;
+		return day;
+	}
+	/**
+	 * @return 月内の候補日の間隔。0=月に１回。
+	 */
+	private int getDayStep() {
+		if (mDate != 0) return 0;
+		return (mDayOfWeekInMonth != 0) ? 0 : 7;
+	}
+
+	/**
+	 * 指定時刻以降の一致日時を順に返すイテレータを返す。
+	 * <li>月単位の状態を持って次の候補日へ進むだけなので、getNextTime() を繰り返し呼ぶより安い。</li>
+	 * <li>年が指定されていて過ぎている場合は何も返さない。</li>
+	 * <li>有効でないパターン(空のパターンを含む)は何も返さない。</li>
+	 * <li>イテレータはこのパターンを参照するので、途中でパターンを変更してはならない。</li>
+	 * @param from 開始時刻(ms)。この時刻ちょうどの一致も含む。
+	 * @param tz タイムゾーン
+	 * @return 一致日時のイテレータ
+	 */
+	public Occurrences occurrences(long from, TimeZone tz) {
+		return new Occurrences(from, tz);
+	}
+
+	/**
+	 * 一致日時のイテレータ。
+	 * <li>nextTime() はボクシングしない。</li>
+	 * <li>一致日時の無いパターンはグレゴリオ暦の１周期を探した所で終わる。</li>
+	 */
+	public class Occurrences implements Iterator<Long> {
+		private final long mFrom;
+		private final TimeZone mTimeZone;
+		private final long mTimeOfDay;
+		private final int mStep;
+		private int mCurYear;
+		private int mCurMonth;
+		private long mFirstDay;
+		private int mLastDay;
+		/** 現在の月の次の候補日。-1=月の候補日が未算出。 */
+		private int mDay = -1;
+		/** 最後に一致してから探した月数。 */
+		private int mMissedMonths;
+		private long mNext;
+
+		private Occurrences(long from, TimeZone tz) {
+			mFrom = from;
+			mTimeZone = tz;
+			mTimeOfDay = (mHour * 60L + mMinute) * 60 * 1000;
+			mStep = getDayStep();
+			long ymd = civilFromDays(floorDiv(from + tz.getOffset(from), DAY_MS));
+			mCurYear = (int) (ymd >> 9);
+			mCurMonth = (int) ((ymd >> 5) & 0xF);
+			if (mYear != 0 && mYear > mCurYear) {
+				mCurYear = mYear;
+				mCurMonth = 1;
+			}
+			mNext = isValid() ? advance() : NO_TIME;
+		}
+
+		/**
+		 * 次の一致日時を求める。
+		 * @return 一致日時(ms)。無ければ NO_TIME。
+		 */
+		private long advance() {
+			while (true) {
+				if (mDay < 0) {
+					if (mYear != 0 && mCurYear != mYear) return NO_TIME;
+					if (mMissedMonths > GREGORIAN_CYCLE * 12) return NO_TIME;
+					if (mMonth != 0 && mCurMonth != mMonth) {
+						nextMonth();
+						continue;
+					}
+					mFirstDay = daysFromCivil(mCurYear, mCurMonth, 1);
+					mLastDay = daysInMonth(mCurYear, mCurMonth);
+					mDay = getFirstDay(mFirstDay);
+				}
+				if (mDay > mLastDay) {
+					nextMonth();
+					continue;
+				}
+				long time = toUtc((mFirstDay + mDay - 1) * DAY_MS + mTimeOfDay, mTimeZone);
+				mDay = (mStep == 0) ? Integer.MAX_VALUE : mDay + mStep;
+				if (time >= mFrom) {
+					mMissedMonths = 0;
+					return time;
 				}
 			}
-		} else {
-			if (mDate != 0 && cal.getTimeInMillis() < currentTime) {
-				cal.add(mMonth != 0 ? Calendar.YEAR : Calendar.MONTH, 1);
+		}
+		private void nextMonth() {
+			mDay = -1;
+			mMissedMonths++;
+			if (++mCurMonth > 12) {
+				mCurMonth = 1;
+				mCurYear++;
 			}
 		}
-		return cal;
+
+		@Override
+		public boolean hasNext() {
+			return mNext != NO_TIME;
+		}
+		/**
+		 * @return 次の一致日時(ms)
+		 * @throws NoSuchElementException もう無い
+		 */
+		public long nextTime() {
+			if (mNext == NO_TIME) throw new NoSuchElementException();
+			long time = mNext;
+			mNext = advance();
+			return time;
+		}
+		@Override
+		public Long next() {
+			return nextTime();
+		}
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * 指定時刻以降の一致日時をまとめて求める。
+	 * @param from 開始時刻(ms)。この時刻ちょうどの一致も含む。
+	 * @param to 終了時刻(ms)。この時刻は含まない。
+	 * @param tz タイムゾーン
+	 * @param times 結果を格納する配列。配列長が最大件数。
+	 * @return 格納した件数
+	 */
+	public int getTimes(long from, long to, TimeZone tz, long[] times) {
+		Occurrences ite = occurrences(from, tz);
+		int n = 0;
+		while (n < times.length && ite.hasNext()) {
+			long time = ite.nextTime();
+			if (time >= to) break;
+			times[n++] = time;
+		}
+		return n;
+	}
+
+	/**
+	 * 現地時刻をUTCに変換する。
+	 * <li>前後半日のオフセットが同じならばそのまま変換する。</li>
+	 * <li>夏時間の開始で存在しない時刻は切り替え前のオフセットで変換する(時計を進めた後の時刻になる)。</li>
+	 * <li>夏時間の終了で２回ある時刻は切り替え後のオフセットで変換する。Calendar と同じ。</li>
+	 */
+	private static long toUtc(long local, TimeZone tz) {
+		long approx = local - tz.getRawOffset();
+		int early = tz.getOffset(approx - DAY_MS / 2);
+		int late = tz.getOffset(approx + DAY_MS / 2);
+		if (early == late) return local - early;
+		long lateUtc = local - late;
+		if (tz.getOffset(lateUtc) == late) return lateUtc;
+		return local - early;
+	}
+
+	/**
+	 * 1970/01/01 からの日数を返す。
+	 * @param y 年
+	 * @param m 月 1-12
+	 * @param d 日 1-31
+	 * @return 日数
+	 */
+	private static long daysFromCivil(int y, int m, int d) {
+		if (m <= 2) y--;
+		long era = floorDiv(y, GREGORIAN_CYCLE);
+		long yoe = y - era * GREGORIAN_CYCLE; // 0-399
+		long doy = (153 * (m > 2 ? m - 3 : m + 9) + 2) / 5 + d - 1; // 3月起点の年内日数
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy; // 0-146096
+		return era * 146097 + doe - 719468;
+	}
+
+	/**
+	 * 1970/01/01 からの日数を年月日に変換する。
+	 * @param days 日数
+	 * @return (年 << 9) | (月 << 5) | 日
+	 */
+	private static long civilFromDays(long days) {
+		days += 719468;
+		long era = floorDiv(days, 146097);
+		long doe = days - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		long d = doy - (153 * mp + 2) / 5 + 1;
+		long m = mp < 10 ? mp + 3 : mp - 9;
+		long y = yoe + era * GREGORIAN_CYCLE + (m <= 2 ? 1 : 0);
+		return (y << 9) | (m << 5) | d;
+	}
+
+	/**
+	 * @param days 1970/01/01 からの日数
+	 * @return 曜日。Calendar.SUNDAY(1) - Calendar.SATURDAY(7)
+	 */
+	private static int dayOfWeek(long days) {
+		return floorMod(days + 4, 7) + 1; // 1970/01/01 は木曜日
+	}
+
+	private static int daysInMonth(int y, int m) {
+		if (m == 2) return (y % 4 == 0 && (y % 100 != 0 || y % 400 == 0)) ? 29 : 28;
+		return (m == 4 || m == 6 || m == 9 || m == 11) ? 30 : 31;
+	}
+
+	private static long floorDiv(long a, long b) {
+		long q = a / b;
+		return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+	}
+	private static int floorMod(long a, int b) {
+		return (int) (a - floorDiv(a, b) * b);
 	}
 
 	// ---------------------------------
@@ -295,6 +883,7 @@ public class TimerPattern {
 	}
 
 	public void setYear(int year) {
+		checkMutable();
 		mYear = year;
 	}
 
@@ -303,6 +892,7 @@ public class TimerPattern {
 	}
 
 	public void setMonth(int month) {
+		checkMutable();
 		mMonth = month;
 	}
 
@@ -311,6 +901,7 @@ public class TimerPattern {
 	}
 
 	public void setDate(int date) {
+		checkMutable();
 		mDate = date;
 	}
 
@@ -319,6 +910,7 @@ public class TimerPattern {
 	}
 
 	public void setDayOfWeek(int dayOfWeek) {
+		checkMutable();
 		mDayOfWeek = dayOfWeek;
 	}
 
@@ -327,6 +919,7 @@ public class TimerPattern {
 	}
 
 	public void setHour(int hour) {
+		checkMutable();
 		mHour = hour;
 	}
 
@@ -335,6 +928,7 @@ public class TimerPattern {
 	}
 
 	public void setMinute(int minute) {
+		checkMutable();
 		mMinute = minute;
 	}
 
@@ -343,6 +937,7 @@ public class TimerPattern {
 	}
 
 	public void setDayOfWeekInMonth(int dayOfWeekInMonth) {
+		checkMutable();
 		mDayOfWeekInMonth = dayOfWeekInMonth;
 	}
 }
@@ -0,0 +1,172 @@
+package org.kotemaru.android.postit.data;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
+
+/**
+ * 付箋データの遅延書き込みキュー。
+ * <li>付箋のドラッグ等の頻繁な更新をUIスレッドで都度DBに書かないためのもの。
+ * <li>同じ付箋IDへの更新は１つにまとめ、最後の更新から一定時間後に１トランザクションで書き込む。
+ * <li>未書き込みの更新は PostItDataProvider の取得系メソッドで読み込み結果に反映される。
+ * <li>書き込みはDBスレッドで行う。
+ * @author kotemaru.org
+ */
+public class WriteBehindQueue {
+	private static final String TAG = WriteBehindQueue.class.getSimpleName();
+	/** 最後の更新から書き込みまでの待ち時間(ms)。 */
+	private static final long QUIET_PERIOD = 1000;
+
+	private static WriteBehindQueue sInstance;
+
+	private final Context mContext;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	/** 付箋IDをキーとする未書き込みの変更カラム。 */
+	private final LongSparseArray<ContentValues> mPending = new LongSparseArray<ContentValues>();
+
+	private final Runnable mFlushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	public static synchronized WriteBehindQueue getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new WriteBehindQueue(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	private WriteBehindQueue(Context context) {
+		mContext = context;
+	}
+
+	/**
+	 * 付箋データの変更カラムをキューに積む。
+	 * <li>付箋データの変更の記録はクリアされる。
+	 * @param data 付箋データ
+	 * @return true=キューに積んだ。false=変更無し。
+	 */
+	public synchronized boolean enqueue(PostItData data) {
+		if (!data.isDirty()) return false;
+		ContentValues values = mPending.get(data.getId());
+		if (values == null) {
+			values = new ContentValues();
+			mPending.put(data.getId(), values);
+		}
+		PostItDataProvider.fromDirtyPostItData(values, data);
+		data.clearDirty();
+		mHandler.removeCallbacks(mFlushTask);
+		mHandler.postDelayed(mFlushTask, QUIET_PERIOD);
+		return true;
+	}
+
+	/**
+	 * 未書き込みの変更をキューから取り出す。
+	 * @param id 付箋ID
+	 * @return 未書き込みの変更カラム。無ければnull。
+	 */
+	public synchronized ContentValues take(long id) {
+		ContentValues values = mPending.get(id);
+		if (values != null) mPending.remove(id);
+		return values;
+	}
+
+	public synchronized boolean isEmpty() {
+		return mPending.size() == 0;
+	}
+
+	/**
+	 * 未書き込みの変更を付箋データに反映する。
+	 * <li>反映したカラムは変更の記録に残さない。書き込みはキューが行う。
+	 * @param data DBから読み込んだ付箋データ
+	 */
+	public synchronized void applyPending(PostItData data) {
+		ContentValues values = mPending.get(data.getId());
+		if (values == null) return;
+		PostItDataProvider.toPostItData(values, data);
+		data.clearDirty();
+	}
+
+	/**
+	 * 未書き込みの変更をDBスレッドで書き込む。完了は待たない。
+	 * <li>DBスレッドから呼ばれた場合はその場で書き込む。
+	 */
+	public void flush() {
+		final ArrayList<ContentProviderOperation> operations = takeOperations();
+		if (operations == null) return;
+		if (PostItDataAsync.isDbThread()) {
+			applyBatch(operations);
+			return;
+		}
+		PostItDataAsync.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				applyBatch(operations);
+				return null;
+			}
+		}, null);
+	}
+
+	/**
+	 * 未書き込みの変更を書き込み、完了を待つ。
+	 * <li>DBスレッド以外から呼ぶとDBスレッドの処理待ちになるのでUIスレッドでは使わない事。
+	 */
+	public void flushAndWait() {
+		final ArrayList<ContentProviderOperation> operations = takeOperations();
+		if (operations == null) return;
+		if (PostItDataAsync.isDbThread()) {
+			applyBatch(operations);
+			return;
+		}
+		Future<Void> future = PostItDataAsync.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				applyBatch(operations);
+				return null;
+			}
+		}, null);
+		try {
+			future.get();
+		} catch (Exception e) {
+			Log.e(TAG, "flushAndWait:" + e, e);
+		}
+	}
+
+	/**
+	 * 未書き込みの変更を一括操作に変換してキューを空にする。
+	 * @return 一括操作。変更が無ければnull。
+	 */
+	private ArrayList<ContentProviderOperation> takeOperations() {
+		ArrayList<ContentProviderOperation> operations;
+		synchronized (this) {
+			mHandler.removeCallbacks(mFlushTask);
+			if (mPending.size() == 0) return null;
+			operations = new ArrayList<ContentProviderOperation>(mPending.size());
+			for (int i = 0; i < mPending.size(); i++) {
+				operations.add(ContentProviderOperation.newUpdate(PostItDataProvider.getItemUri(mPending.keyAt(i)))
+						.withValues(mPending.valueAt(i))
+						.build());
+			}
+			mPending.clear();
+		}
+		return operations;
+	}
+
+	private void applyBatch(ArrayList<ContentProviderOperation> operations) {
+		try {
+			mContext.getContentResolver().applyBatch(PostItDataProvider.AUTHORITY, operations);
+		} catch (Exception e) {
+			Log.e(TAG, "flush:" + e, e);
+		}
+	}
+}
@@ -48,7 +48,7 @@ public class DatetimePickerDialogFragment extends DialogFragment {
 		Bundle args = getArguments();
 		View view = getActivity().getLayoutInflater().inflate(R.layout.datetime_picker_dialog, null);
 		final DatetimePickerDialogViews views = new DatetimePickerDialogViews(view);
-		TimerPattern pattern = TimerPattern.create(args.getString(KEY_TIMER_PATTERN));
+		TimerPattern pattern = TimerPattern.valueOf(args.getString(KEY_TIMER_PATTERN));
 		views.mDatePicker.setValue(pattern);
 		views.mTimePicker.setValue(pattern);
 
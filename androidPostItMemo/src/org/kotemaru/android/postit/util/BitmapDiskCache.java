@@ -0,0 +1,250 @@
+package org.kotemaru.android.postit.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.net.Uri;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+/**
+ * 加工済みBitmapのディスクキャッシュ。
+ * <li>画素をそのままファイルに書くので、読み込みは画像のデコード無しでメモリに写すだけ。
+ * <li>キーは元画像のURI、更新日時、ファイルサイズ、要求サイズ。元画像が変わればキーも変わる。
+ * <li>合計サイズが上限を超えたら最後に使ったのが古いファイルから削除する。
+ * <li>スレッドセーフでは無い。１つのスレッドから使うこと。
+ * @author kotemaru.org
+ */
+public class BitmapDiskCache {
+	private static final String TAG = BitmapDiskCache.class.getSimpleName();
+
+	/** ファイル先頭の識別子。 */
+	private static final int MAGIC = 0x50494d42; // "PIMB"
+	/** ヘッダ長。MAGIC、幅、高さ、Bitmap.Config の序数。 */
+	private static final int HEADER_SIZE = 16;
+	private static final String SUFFIX = ".px";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private final File mDir;
+	private final long mMaxBytes;
+
+	/**
+	 * @param dir キャッシュディレクトリ。無ければ書き込み時に作る。
+	 * @param maxBytes 合計サイズの上限
+	 */
+	public BitmapDiskCache(File dir, long maxBytes) {
+		mDir = dir;
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * キャッシュキーを求める。
+	 * @param context
+	 * @param uri 元画像のURI
+	 * @param size 要求サイズ
+	 * @return キャッシュキー。元画像の更新を判定できない場合はnull。
+	 */
+	public static String toKey(Context context, Uri uri, Point size) {
+		String stamp = getSourceStamp(context, uri);
+		if (stamp == null) return null;
+		String src = uri + "|" + stamp + "|" + size.x + "x" + size.y;
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			byte[] digest = md.digest(src.getBytes("UTF-8"));
+			StringBuilder sbuf = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sbuf.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sbuf.append(Character.forDigit(b & 0xf, 16));
+			}
+			return sbuf.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * 元画像の更新日時とサイズを得る。
+	 * <li>"assets://" はアプリと一緒に更新されるのでアプリの更新日時を使う。
+	 * <li>"content://" は Provider の last_modified、date_modified、_size カラムの有る物を使う。
+	 * @param context
+	 * @param uri 元画像のURI
+	 * @return "更新日時:サイズ"。どちらも得られなければnull。
+	 */
+	private static String getSourceStamp(Context context, Uri uri) {
+		String scheme = uri.getScheme();
+		if ("assets".equals(scheme)) {
+			try {
+				return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime + ":0";
+			} catch (PackageManager.NameNotFoundException e) {
+				return null;
+			}
+		}
+		if ("file".equals(scheme)) {
+			File file = new File(uri.getPath());
+			if (!file.exists()) return null;
+			return file.lastModified() + ":" + file.length();
+		}
+		Cursor cursor = null;
+		try {
+			cursor = context.getContentResolver().query(uri, null, null, null, null);
+			if (cursor == null || !cursor.moveToFirst()) return null;
+			long modified = getLong(cursor, "last_modified");
+			if (modified < 0) modified = getLong(cursor, "date_modified");
+			long length = getLong(cursor, OpenableColumns.SIZE);
+			if (modified < 0 && length < 0) return null;
+			return modified + ":" + length;
+		} catch (Exception e) {
+			Log.d(TAG, "getSourceStamp:" + uri + ":" + e);
+			return null;
+		} finally {
+			if (cursor != null) cursor.close();
+		}
+	}
+
+	private static long getLong(Cursor cursor, String column) {
+		int index = cursor.getColumnIndex(column);
+		if (index < 0 || cursor.isNull(index)) return -1;
+		return cursor.getLong(index);
+	}
+
+	/**
+	 * キャッシュからBitmapを読み込む。
+	 * <li>読み込んだファイルは最終使用日時を更新する。
+	 * @param key キャッシュキー
+	 * @return Bitmap。無いか壊れていればnull。
+	 */
+	public Bitmap get(String key) {
+		File file = new File(mDir, key + SUFFIX);
+		if (!file.exists()) return null;
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			FileChannel channel = in.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+			while (header.hasRemaining()) {
+				if (channel.read(header) < 0) break;
+			}
+			header.flip();
+			if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) throw new IOException("Bad header");
+			int width = header.getInt();
+			int height = header.getInt();
+			int configIndex = header.getInt();
+			Bitmap.Config[] configs = Bitmap.Config.values();
+			if (width <= 0 || height <= 0 || configIndex < 0 || configIndex >= configs.length) {
+				throw new IOException("Bad header");
+			}
+			Bitmap bitmap = Bitmap.createBitmap(width, height, configs[configIndex]);
+			long length = (long) bitmap.getRowBytes() * height;
+			if (channel.size() - HEADER_SIZE != length) {
+				bitmap.recycle();
+				throw new IOException("Bad length");
+			}
+			ByteBuffer pixels = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, length);
+			bitmap.copyPixelsFromBuffer(pixels);
+			file.setLastModified(System.currentTimeMillis());
+			return bitmap;
+		} catch (IOException e) {
+			Log.w(TAG, "get:" + file + ":" + e);
+			file.delete();
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * Bitmapをキャッシュに書き込む。
+	 * <li>一時ファイルに書いてから名前を変えるので、書き込み途中のファイルを読むことは無い。
+	 * <li>書き込み後に合計サイズが上限を超えていれば古いファイルを削除する。
+	 * @param key キャッシュキー
+	 * @param bitmap Bitmap
+	 */
+	public void put(String key, Bitmap bitmap) {
+		if (bitmap.getConfig() == null) return;
+		if (!mDir.isDirectory() && !mDir.mkdirs()) return;
+		File file = new File(mDir, key + SUFFIX);
+		File tmp = new File(mDir, key + TMP_SUFFIX);
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			FileChannel channel = out.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+			header.putInt(MAGIC);
+			header.putInt(bitmap.getWidth());
+			header.putInt(bitmap.getHeight());
+			header.putInt(bitmap.getConfig().ordinal());
+			header.flip();
+			ByteBuffer pixels = ByteBuffer.allocateDirect(bitmap.getRowBytes() * bitmap.getHeight());
+			bitmap.copyPixelsToBuffer(pixels);
+			pixels.flip();
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			while (pixels.hasRemaining()) {
+				channel.write(pixels);
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) throw new IOException("Rename failed");
+		} catch (IOException e) {
+			Log.w(TAG, "put:" + file + ":" + e);
+			tmp.delete();
+			return;
+		} finally {
+			close(out);
+		}
+		trimToSize();
+	}
+
+	/**
+	 * 合計サイズが上限以下になるまで最終使用日時の古いファイルから削除する。
+	 */
+	private void trimToSize() {
+		File[] files = mDir.listFiles();
+		if (files == null) return;
+		long total = 0;
+		for (File file : files) {
+			total += file.length();
+		}
+		if (total <= mMaxBytes) return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				long t1 = f1.lastModified();
+				long t2 = f2.lastModified();
+				return (t1 < t2) ? -1 : ((t1 == t2) ? 0 : 1);
+			}
+		});
+		for (File file : files) {
+			if (total <= mMaxBytes) break;
+			long length = file.length();
+			if (file.delete()) total -= length;
+		}
+	}
+
+	private static void close(Closeable closeable) {
+		if (closeable == null) return;
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// ignore.
+		}
+	}
+}
@@ -0,0 +1,334 @@
+package org.kotemaru.android.postit.util;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Matrix;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * 画像の読み込み。
+ * <li>URIは１回だけ開き、サイズの取得と読み込みで使い回す。"content://" はファイルディスクリプタで開く。
+ * <li>間引き率は要求サイズを下回らない最大の２のべき乗。
+ * <li>中央の切り抜きは BitmapRegionDecoder で必要な領域だけを読み込み、拡大縮小は１回で済ませる。
+ * <li>拡大縮小前の中間Bitmapは保持し、次回の読み込みで inBitmap として再利用する。
+ * <li>不透明な画像(JPEG)は指定した形式(RGB_565等)で読み込む。
+ * <li>読み込み中に同時に保持していたBitmapの合計の最大バイト数を記録する。再利用のために保持している中間Bitmapも含む。
+ * <li>スレッドセーフでは無い。１つのスレッドから使うこと。
+ * @author kotemaru.org
+ */
+public class BitmapLoader {
+	private static final String TAG = BitmapLoader.class.getSimpleName();
+
+	/** 不透明な画像の読み込み形式。 */
+	private Bitmap.Config mOpaqueConfig = Bitmap.Config.ARGB_8888;
+	/** 再利用する中間Bitmap。 */
+	private Bitmap mReusable = null;
+	/** 前回の読み込みで同時に保持していたBitmapの最大バイト数。 */
+	private int mPeakBytes = 0;
+	/** 読み込み中に保持しているBitmapのバイト数。 */
+	private int mLiveBytes = 0;
+
+	/**
+	 * 不透明な画像の読み込み形式の設定。
+	 * @param config RGB_565 ならメモリは半分になる。
+	 * @return this
+	 */
+	public BitmapLoader setOpaqueConfig(Bitmap.Config config) {
+		mOpaqueConfig = config;
+		return this;
+	}
+
+	/**
+	 * @return 前回の読み込みで同時に保持していたBitmapの最大バイト数。
+	 */
+	public int getPeakBytes() {
+		return mPeakBytes;
+	}
+
+	/**
+	 * 再利用のために保持している中間Bitmapを解放する。
+	 */
+	public void releaseReusable() {
+		if (mReusable != null) mReusable.recycle();
+		mReusable = null;
+		mLiveBytes = 0;
+	}
+
+	/**
+	 * 要求サイズを下回らない最大の２のべき乗の間引き率を求める。
+	 * @param srcW 元の幅
+	 * @param srcH 元の高さ
+	 * @param dstW 要求幅
+	 * @param dstH 要求高さ
+	 * @return 間引き率
+	 */
+	public static int calcSampleSize(int srcW, int srcH, int dstW, int dstH) {
+		int sample = 1;
+		while (srcW / (sample * 2) >= dstW && srcH / (sample * 2) >= dstH) {
+			sample *= 2;
+		}
+		return sample;
+	}
+
+	/**
+	 * アスペクト比を保ったまま要求サイズの縦横比で中央を切り抜く矩形を求める。
+	 * @param srcW 元の幅
+	 * @param srcH 元の高さ
+	 * @param dstW 要求幅
+	 * @param dstH 要求高さ
+	 * @return 元画像上の切り抜き矩形
+	 */
+	public static Rect calcCenterCrop(int srcW, int srcH, int dstW, int dstH) {
+		float dispAspect = (float) dstW / (float) dstH;
+		float imgAspect = (float) srcW / (float) srcH;
+		int x, y, w, h;
+		if (dispAspect > imgAspect) {
+			w = srcW;
+			h = Math.max(1, (int) (srcW / dispAspect));
+			x = 0;
+			y = srcH / 2 - h / 2;
+		} else {
+			w = Math.max(1, (int) (srcH * dispAspect));
+			h = srcH;
+			x = srcW / 2 - w / 2;
+			y = 0;
+		}
+		return new Rect(x, y, x + w, y + h);
+	}
+
+	/**
+	 * 読み込み済みのBitmapを中央で切り抜いて要求サイズにする。切り抜きと拡大縮小は１回で行う。
+	 * @param src 元画像
+	 * @param size 要求サイズ
+	 * @return 要求サイズのBitmap。元画像そのままの場合も有る。
+	 */
+	public static Bitmap centerCrop(Bitmap src, Point size) {
+		Rect crop = calcCenterCrop(src.getWidth(), src.getHeight(), size.x, size.y);
+		Matrix matrix = new Matrix();
+		matrix.setScale((float) size.x / crop.width(), (float) size.y / crop.height());
+		return Bitmap.createBitmap(src, crop.left, crop.top, crop.width(), crop.height(), matrix, true);
+	}
+
+	/**
+	 * URIから画像を読み込み、中央で切り抜いて要求サイズにする。
+	 * <li>BitmapRegionDecoder が扱えない形式は全体を間引いて読み込んでから切り抜く。
+	 * @param context
+	 * @param uri 画像のURI
+	 * @param size 要求サイズ
+	 * @return 要求サイズのBitmap。読めない画像ならnull。
+	 * @throws IOException
+	 */
+	public Bitmap loadCenterCrop(Context context, Uri uri, Point size) throws IOException {
+		if (uri == null) return null;
+		mPeakBytes = 0;
+		mLiveBytes = 0;
+		if (mReusable != null) allocated(mReusable);
+		ParcelFileDescriptor pfd = null;
+		InputStream in = null;
+		try {
+			// サイズの取得
+			BitmapFactory.Options bounds = new BitmapFactory.Options();
+			bounds.inJustDecodeBounds = true;
+			if ("assets".equals(uri.getScheme())) {
+				in = Util.openUri(context, uri);
+				if (in.markSupported()) in.mark(Integer.MAX_VALUE);
+				BitmapFactory.decodeStream(in, null, bounds);
+				in = rewind(context, uri, in);
+			} else {
+				pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+				if (pfd == null) return null;
+				// decodeFileDescriptor() は読み込み位置を変えない。
+				BitmapFactory.decodeFileDescriptor(pfd.getFileDescriptor(), null, bounds);
+			}
+			if (bounds.outWidth <= 0 || bounds.outHeight <= 0) return null;
+
+			Rect crop = calcCenterCrop(bounds.outWidth, bounds.outHeight, size.x, size.y);
+			int sample = calcSampleSize(crop.width(), crop.height(), size.x, size.y);
+			Bitmap.Config config = "image/jpeg".equals(bounds.outMimeType) ? mOpaqueConfig : Bitmap.Config.ARGB_8888;
+
+			Bitmap bitmap;
+			BitmapRegionDecoder decoder = newRegionDecoder(pfd, in);
+			if (decoder != null) {
+				try {
+					bitmap = decodeRegion(decoder, crop, sample, config);
+				} finally {
+					decoder.recycle();
+				}
+				if (bitmap == null) return null;
+				bitmap = scale(bitmap, size);
+			} else {
+				// 切り抜きに対応しない形式。
+				BitmapFactory.Options option = newOptions(sample, config);
+				if (pfd != null) {
+					FileDescriptor fd = pfd.getFileDescriptor();
+					rewind(fd);
+					bitmap = BitmapFactory.decodeFileDescriptor(fd, null, option);
+				} else {
+					in = rewind(context, uri, in);
+					bitmap = BitmapFactory.decodeStream(in, null, option);
+				}
+				if (bitmap == null) return null;
+				allocated(bitmap);
+				Bitmap cropped = centerCrop(bitmap, size);
+				if (cropped != bitmap) {
+					allocated(cropped);
+					released(bitmap);
+					bitmap.recycle();
+				}
+				bitmap = cropped;
+			}
+			Log.d(TAG, "loadCenterCrop:" + uri + ":" + bounds.outWidth + "x" + bounds.outHeight
+					+ "/" + sample + "->" + size.x + "x" + size.y + ":" + config + ":peak=" + mPeakBytes);
+			return bitmap;
+		} catch (IOException e) {
+			Log.e(TAG, "loadCenterCrop:" + e, e);
+			throw e;
+		} finally {
+			if (in != null) in.close();
+			if (pfd != null) pfd.close();
+		}
+	}
+
+	/**
+	 * 読み込み済みのストリームを先頭に戻す。戻せなければ開き直す。
+	 */
+	private static InputStream rewind(Context context, Uri uri, InputStream in) throws IOException {
+		if (in.markSupported()) {
+			in.reset();
+			return in;
+		}
+		in.close();
+		return Util.openUri(context, uri);
+	}
+
+	/**
+	 * ファイルディスクリプタの読み込み位置を先頭に戻す。
+	 * <li>FileDescriptor から作ったストリームは fd を所有しないので、閉じても fd は閉じない。
+	 */
+	private static void rewind(FileDescriptor fd) throws IOException {
+		FileInputStream in = new FileInputStream(fd);
+		try {
+			in.getChannel().position(0);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return BitmapRegionDecoder。扱えない形式ならnull。
+	 */
+	private static BitmapRegionDecoder newRegionDecoder(ParcelFileDescriptor pfd, InputStream in) {
+		try {
+			if (pfd != null) return BitmapRegionDecoder.newInstance(pfd.getFileDescriptor(), false);
+			if (in.markSupported()) in.mark(Integer.MAX_VALUE);
+			return BitmapRegionDecoder.newInstance(in, false);
+		} catch (IOException e) {
+			Log.d(TAG, "newRegionDecoder:" + e);
+			if (in != null && in.markSupported()) {
+				try {
+					in.reset();
+				} catch (IOException e2) {
+					// 呼び出し元で開き直す。
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * 切り抜き領域だけを間引いて読み込む。
+	 * <li>再利用できる中間Bitmapが有れば inBitmap に使う。失敗したら新しく確保して読み直す。
+	 */
+	private Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect crop, int sample, Bitmap.Config config) {
+		int w = (crop.width() + sample - 1) / sample;
+		int h = (crop.height() + sample - 1) / sample;
+		BitmapFactory.Options option = newOptions(sample, config);
+		Bitmap reusable = mReusable;
+		mReusable = null;
+		if (canReuse(reusable, w, h, config)) {
+			option.inBitmap = reusable;
+			try {
+				Bitmap bitmap = decoder.decodeRegion(crop, option);
+				if (bitmap != null) return bitmap;
+			} catch (IllegalArgumentException e) {
+				Log.d(TAG, "decodeRegion:inBitmap:" + e);
+			}
+			option.inBitmap = null;
+		}
+		if (reusable != null) {
+			released(reusable);
+			reusable.recycle();
+		}
+		Bitmap bitmap = decoder.decodeRegion(crop, option);
+		if (bitmap != null) allocated(bitmap);
+		return bitmap;
+	}
+
+	/**
+	 * 要求サイズに拡大縮小する。元の中間Bitmapは次回の再利用のために保持する。
+	 */
+	private Bitmap scale(Bitmap bitmap, Point size) {
+		if (bitmap.getWidth() == size.x && bitmap.getHeight() == size.y) return bitmap;
+		Bitmap scaled = Bitmap.createScaledBitmap(bitmap, size.x, size.y, true);
+		allocated(scaled);
+		mReusable = bitmap;
+		return scaled;
+	}
+
+	private static BitmapFactory.Options newOptions(int sample, Bitmap.Config config) {
+		BitmapFactory.Options option = new BitmapFactory.Options();
+		option.inSampleSize = sample;
+		option.inPreferredConfig = config;
+		option.inDither = (config == Bitmap.Config.RGB_565);
+		option.inMutable = true;
+		return option;
+	}
+
+	/**
+	 * inBitmap に使えるか判定する。
+	 * <li>KITKAT以降は容量が足りれば良い。JELLY_BEAN以降はサイズが同じ場合のみ。
+	 */
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static boolean canReuse(Bitmap bitmap, int w, int h, Bitmap.Config config) {
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) return false;
+		if (bitmap.getConfig() != config) return false;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			int bpp = (config == Bitmap.Config.RGB_565) ? 2 : 4;
+			return bitmap.getAllocationByteCount() >= w * h * bpp;
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			return bitmap.getWidth() == w && bitmap.getHeight() == h;
+		}
+		return false;
+	}
+
+	private void allocated(Bitmap bitmap) {
+		mLiveBytes += sizeOf(bitmap);
+		mPeakBytes = Math.max(mPeakBytes, mLiveBytes);
+	}
+	private void released(Bitmap bitmap) {
+		mLiveBytes -= sizeOf(bitmap);
+	}
+
+	/**
+	 * @return Bitmapの確保済みバイト数。inBitmap で小さく再利用されていても確保した大きさを返す。
+	 */
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static int sizeOf(Bitmap bitmap) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) return bitmap.getAllocationByteCount();
+		return bitmap.getByteCount();
+	}
+}
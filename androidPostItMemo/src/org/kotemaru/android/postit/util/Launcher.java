@@ -2,6 +2,7 @@ package org.kotemaru.android.postit.util;
 
 import org.kotemaru.android.postit.AlarmListActivity;
 import org.kotemaru.android.postit.PostItSettingActivity;
+import org.kotemaru.android.postit.SearchActivity;
 import org.kotemaru.android.postit.data.PostItData;
 
 import android.annotation.TargetApi;
@@ -43,6 +44,12 @@ public class Launcher {
 		context.startActivity(intent);
 	}
 
+	public static void startSearchActivity(Context context) {
+		Intent intent = new Intent(context, SearchActivity.class);
+		intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+		context.startActivity(intent);
+	}
+
 	/**
 	 * 画像選択の開始。
 	 * @param context
@@ -90,14 +97,6 @@ public class Launcher {
 		Intent intent = new Intent(ACTION_CHANGE_SETTENGS);
 		context.startService(intent);
 	}
-	/**
-	 * Live壁紙にデータの変更を通知。
-	 * @param context
-	 */
-	public static void notifyChangeData(Context context) {
-		Intent intent = new Intent(ACTION_CHANGE_DATA);
-		context.startService(intent);
-	}
 
 	/**
 	 * ライブ壁紙を設定。
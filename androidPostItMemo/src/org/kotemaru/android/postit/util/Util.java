@@ -4,12 +4,9 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.PixelFormat;
 import android.graphics.Point;
 import android.net.Uri;
-import android.util.Log;
 import android.view.Display;
 import android.view.Gravity;
 import android.view.WindowManager;
@@ -19,8 +16,6 @@ import android.view.WindowManager;
  * @author kotemaru.org
  */
 public class Util {
-	private static final String TAG = Util.class.getSimpleName();
-
 	/**
 	 * システムのステータスバーの高さを得る。
 	 * @param context
@@ -66,62 +61,6 @@ public class Util {
 		}
 	}
 
-	/**
-	 * URIから画像のサイズを得る。
-	 * @param context
-	 * @param uri
-	 * @return
-	 * @throws IOException
-	 */
-	public static BitmapFactory.Options loadBitmapSize(Context context, Uri uri) throws IOException {
-		if (uri == null) return null;
-		InputStream in = null;
-		try {
-			BitmapFactory.Options option = new BitmapFactory.Options();
-			option.inJustDecodeBounds = true;
-			in = openUri(context, uri);
-			BitmapFactory.decodeStream(in, null, option);
-			return option;
-		} catch (IOException e) {
-			Log.e(TAG, "loadBitmapSize:" + e, e);
-			throw e;
-		} finally {
-			if (in != null) in.close();
-		}
-	}
-
-	/**
-	 * URIから画像を得る。サイズの調整も行う。
-	 * <li>要求サイズ丁度では無い。画像の劣化が起こらない最小サイズ。
-	 * @param context
-	 * @param uri
-	 * @param size 要求サイズ。
-	 * @return サイズ補正済Bitmap。
-	 * @throws IOException
-	 */
-	public static Bitmap loadBitmap(Context context, Uri uri, Point size) throws IOException {
-		if (uri == null) return null;
-		InputStream in = null;
-		try {
-			BitmapFactory.Options realSize = loadBitmapSize(context, uri);
-			if (realSize == null) return null;
-			int scaleW = realSize.outWidth / size.x + 1;
-			int scaleH = realSize.outHeight / size.y + 1;
-			int scale = Math.max(scaleW, scaleH);
-
-			BitmapFactory.Options option = new BitmapFactory.Options();
-			option.inSampleSize = scale;
-			in = openUri(context, uri);
-			Bitmap bitmap = BitmapFactory.decodeStream(in, null, option);
-			return bitmap;
-		} catch (IOException e) {
-			Log.e(TAG, "loadBitmap:" + e, e);
-			throw e;
-		} finally {
-			if (in != null) in.close();
-		}
-	}
-
 	/**
 	 * オーバレイ・レイヤ用のパラメータを返す。
 	 * @return
@@ -4,6 +4,7 @@ import org.kotemaru.android.postit.PostItConst.PostItColor;
 import org.kotemaru.android.postit.PostItWallpaper;
 import org.kotemaru.android.postit.R;
 import org.kotemaru.android.postit.data.PostItData;
+import org.kotemaru.android.postit.data.PostItDataAsync;
 import org.kotemaru.android.postit.util.AnimFactory;
 import org.kotemaru.android.postit.util.AnimFactory.AnimEndListener;
 import org.kotemaru.android.postit.util.Launcher;
@@ -161,9 +162,13 @@ public class PostItTray {
 				ClipData.Item item = ev.getClipData().getItemAt(0);
 				int color = Integer.parseInt(item.getText().toString());
 				PostItData data = new PostItData(-1, color, (int) ev.getX(), (int) ev.getY());
-				PostItView postItView = mPostItWallpaper.createPostIt(data);
-				data = postItView.getPostItData();
-				Launcher.startPostItSettingsActivity(mPostItWallpaper, data);
+				mPostItWallpaper.createPostIt(data, new PostItDataAsync.Callback<PostItView>() {
+					@Override
+					public void onResult(PostItView postItView) {
+						if (postItView == null) return;
+						Launcher.startPostItSettingsActivity(mPostItWallpaper, postItView.getPostItData());
+					}
+				});
 				hide();
 			}
 			return false;
@@ -6,6 +6,7 @@ import org.kotemaru.android.postit.PostItViewManager;
 import org.kotemaru.android.postit.PostItWallpaper;
 import org.kotemaru.android.postit.R;
 import org.kotemaru.android.postit.data.PostItData;
+import org.kotemaru.android.postit.data.PostItDataAsync;
 import org.kotemaru.android.postit.data.PostItDataProvider;
 import org.kotemaru.android.postit.data.TimerPattern;
 import org.kotemaru.android.postit.util.AnimFactory;
@@ -26,6 +27,8 @@ import android.view.animation.Animation;
 import android.widget.FrameLayout;
 import android.widget.TextView;
 
+import java.util.TimeZone;
+
 /**
  * 付箋用のカスタムView。
  * <li>WindowManagerの子となる。
@@ -59,6 +62,12 @@ public class PostItView extends FrameLayout {
 		this.setOnTouchListener(mOnTouchListener);
 	}
 
+	@Override
+	protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+		super.onLayout(changed, left, top, right, bottom);
+		if (changed && mManager != null) mManager.onPostItViewLayout(this);
+	}
+
 	public long getPostItId() {
 		return mPostItData.getId();
 	}
@@ -206,24 +215,32 @@ public class PostItView extends FrameLayout {
 	 * ゴミ箱行き処理。
 	 * <li>データ削除してゴミ箱に吸い込まれるアニメーション開始。
 	 * <li>タイマー設定がある場合は非表示にして次のタイマー設定。</li>
+	 * <li>次の一致日時が無いタイマーはタイマー無しと同じく削除する。</li>
 	 * @param params
 	 */
 	private void doTrash(WindowManager.LayoutParams params, int ox, int oy) {
 		final PostItWallpaper postItWallpaper = mManager.getPostItWallpaper();
 		final PostItTray postItTray = postItWallpaper.getPostItTray();
 
-		Point trashPoint;
+		long nextTime = TimerPattern.NO_TIME;
 		if (mPostItData.getTimerPattern() != null && mPostItData.isTimerIsRepeat()) {
-			TimerPattern timerPattern = TimerPattern.create(mPostItData.getTimerPattern());
+			TimerPattern timerPattern = TimerPattern.valueOf(mPostItData.getTimerCode());
+			long now = System.currentTimeMillis();
+			nextTime = timerPattern.getNextTime(now, TimeZone.getDefault());
+			if (nextTime < now) nextTime = TimerPattern.NO_TIME;
+		}
+
+		Point trashPoint;
+		if (nextTime != TimerPattern.NO_TIME) {
 			mPostItData.setEnabled(false);
-			mPostItData.setTimer(timerPattern.getNextDate().getTimeInMillis());
+			mPostItData.setTimer(nextTime);
 			mPostItData.setPosX(ox);
 			mPostItData.setPosY(oy);
-			PostItDataProvider.updatePostItData(postItWallpaper, mPostItData);
+			PostItDataProvider.updatePostItDataLater(postItWallpaper, mPostItData);
 			trashPoint = postItTray.getAlarmPoint();
 			move(trashPoint.x - getWidth() / 2, trashPoint.y - getHeight() / 2);
 		} else {
-			PostItDataProvider.removePostItData(postItWallpaper, mPostItData);
+			PostItDataAsync.removePostItData(postItWallpaper, mPostItData, null);
 			trashPoint = postItTray.getTrashPoint();
 		}
 
@@ -240,7 +257,7 @@ public class PostItView extends FrameLayout {
 	}
 	/**
 	 * 移動確定処理。
-	 * <li>移動先座標をDBに保存する。
+	 * <li>移動先座標をDBに保存する。保存は遅延書き込み。
 	 * <li>画面の外にはみ出さないように座標は補正する。
 	 * @param params
 	 */
@@ -255,7 +272,7 @@ public class PostItView extends FrameLayout {
 		if (mPostItData.getPosX() > bounds.right - dp20) mPostItData.setPosX(bounds.right - dp20);
 		if (mPostItData.getPosY() > bounds.bottom - dp20) mPostItData.setPosY(bounds.bottom - dp20);
 		this.setPostItData(mPostItData);
-		PostItDataProvider.updatePostItData(postItWallpaper, mPostItData);
+		PostItDataProvider.updatePostItDataLater(postItWallpaper, mPostItData);
 		postItTray.hide();
 		postItWallpaper.update();
 	}
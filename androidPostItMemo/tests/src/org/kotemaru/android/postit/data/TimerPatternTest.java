@@ -0,0 +1,447 @@
+package org.kotemaru.android.postit.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.NoSuchElementException;
+import java.util.TimeZone;
+
+import org.junit.Test;
+import org.kotemaru.android.postit.data.TimerPattern.FormatException;
+
+/**
+ * TimerPattern のテスト。
+ * <li>getNextTime() は旧実装(Calendar による getNextDate())と数年分の現在時刻で突き合わせる。</li>
+ * <li>旧実装と意図的に異なる動作はそれぞれ個別に確認する。</li>
+ * <li>正規化文字列の解析はエラー位置とメッセージまで確認する。</li>
+ * <li>occurrences() と getTimes() は getNextTime() を繰り返した結果と突き合わせる。</li>
+ * <li>共有インスタンスのキャッシュは全テストで共有なので、他のテストと重ならない年のパターンを使い、カウンタは差分で見る。</li>
+ * @author kotemaru.org
+ */
+public class TimerPatternTest {
+	private static final String[] TIME_ZONES = {
+		"Asia/Tokyo", "UTC", "America/New_York", "Europe/London", "Australia/Sydney",
+	};
+	/** 夏時間の切り替え時刻を避ける。切り替え時の動作は testDaylightSaving() で確認する。 */
+	private static final int[][] HOUR_MINUTES = {{0, 0}, {13, 30}, {23, 59}};
+	private static final int FROM_YEAR = 2015;
+	private static final int YEARS = 5;
+	/** 現在時刻の刻み。時刻と曜日がずれていくように半端にする。 */
+	private static final long STEP_MS = (37L * 60 + 17) * 60 * 1000;
+
+	/**
+	 * 旧実装の getNextDate()。現在時刻とタイムゾーンを引数にした以外はそのまま。
+	 */
+	private static long legacyNextTime(TimerPattern p, long now, TimeZone tz) {
+		Calendar cal = new GregorianCalendar(tz);
+		cal.setTimeInMillis(now);
+		long currentTime = cal.getTimeInMillis();
+		if (p.getYear() != 0) cal.set(Calendar.YEAR, p.getYear());
+		if (p.getMonth() != 0) cal.set(Calendar.MONTH, p.getMonth() - 1);
+		if (p.getDate() != 0) cal.set(Calendar.DAY_OF_MONTH, p.getDate());
+		if (p.getDayOfWeek() != 0) cal.set(Calendar.DAY_OF_WEEK, p.getDayOfWeek());
+		cal.set(Calendar.HOUR_OF_DAY, p.getHour());
+		cal.set(Calendar.MINUTE, p.getMinute());
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+		if (p.getYear() != 0 && cal.getTimeInMillis() < currentTime) return cal.getTimeInMillis();
+		if (p.getDayOfWeek() != 0) {
+			while (cal.getTimeInMillis() < currentTime) {
+				cal.add(Calendar.DATE, 7);
+			}
+			if (p.getDayOfWeekInMonth() != 0) {
+				while (p.getDayOfWeekInMonth() != cal.get(Calendar.DAY_OF_WEEK_IN_MONTH)) {
+					cal.add(Calendar.DATE, 7);
+				}
+			}
+		} else {
+			if (p.getDate() != 0 && cal.getTimeInMillis() < currentTime) {
+				cal.add(p.getMonth() != 0 ? Calendar.YEAR : Calendar.MONTH, 1);
+			}
+		}
+		return cal.getTimeInMillis();
+	}
+
+	private static TimerPattern pattern(int year, int month, int date, int dayOfWeek, int dayOfWeekInMonth,
+			int hour, int minute) {
+		TimerPattern p = new TimerPattern();
+		p.setYear(year);
+		p.setMonth(month);
+		p.setDate(date);
+		p.setDayOfWeek(dayOfWeek);
+		p.setDayOfWeekInMonth(dayOfWeekInMonth);
+		p.setHour(hour);
+		p.setMinute(minute);
+		return p;
+	}
+
+	private static long time(TimeZone tz, int year, int month, int date, int hour, int minute) {
+		Calendar cal = new GregorianCalendar(tz);
+		cal.clear();
+		cal.set(year, month - 1, date, hour, minute);
+		return cal.getTimeInMillis();
+	}
+
+	private static void assertFormatError(String formal, int errorOffset, String reason) {
+		try {
+			TimerPattern.create(formal);
+		} catch (FormatException e) {
+			assertEquals(formal, errorOffset, e.getErrorOffset());
+			assertEquals(reason + " at " + errorOffset + ": " + formal, e.getMessage());
+			return;
+		}
+		fail("No error: " + formal);
+	}
+
+	private static void assertNextTime(TimerPattern p, long now, TimeZone tz, long expected) {
+		long actual = p.getNextTime(now, tz);
+		if (expected == actual) return;
+		SimpleDateFormat fmt = new SimpleDateFormat("yyyy/MM/dd(E) HH:mm z");
+		fmt.setTimeZone(tz);
+		assertEquals(p.toFormalString() + " now=" + fmt.format(new Date(now))
+				+ " expected=" + (expected == TimerPattern.NO_TIME ? "NO_TIME" : fmt.format(new Date(expected)))
+				+ " actual=" + (actual == TimerPattern.NO_TIME ? "NO_TIME" : fmt.format(new Date(actual))),
+				expected, actual);
+	}
+
+	private static void assertSameAsLegacy(TimerPattern p) {
+		for (String id : TIME_ZONES) {
+			TimeZone tz = TimeZone.getTimeZone(id);
+			long from = time(tz, FROM_YEAR, 1, 1, 0, 0);
+			long to = time(tz, FROM_YEAR + YEARS, 1, 1, 0, 0);
+			for (long now = from; now < to; now += STEP_MS) {
+				assertNextTime(p, now, tz, legacyNextTime(p, now, tz));
+			}
+		}
+	}
+
+	/** 日のみ。全ての月に有る日(1-28日)。 */
+	@Test
+	public void testDateSameAsLegacy() {
+		for (int date = 1; date <= 28; date++) {
+			for (int[] hm : HOUR_MINUTES) {
+				assertSameAsLegacy(pattern(0, 0, date, 0, 0, hm[0], hm[1]));
+			}
+		}
+	}
+
+	/** 月日。２月２９日以外の実在する日。 */
+	@Test
+	public void testMonthDateSameAsLegacy() {
+		for (int month = 1; month <= 12; month++) {
+			for (int date : new int[] {1, 15, 28, 30, 31}) {
+				if (date > 30 && (month == 4 || month == 6 || month == 9 || month == 11)) continue;
+				if (date > 28 && month == 2) continue;
+				assertSameAsLegacy(pattern(0, month, date, 0, 0, 13, 30));
+			}
+		}
+	}
+
+	/** 年月日。実在する日。過ぎている場合も旧実装と同じくその日を返す。 */
+	@Test
+	public void testYearMonthDateSameAsLegacy() {
+		for (int year = FROM_YEAR - 1; year <= FROM_YEAR + YEARS; year++) {
+			for (int month : new int[] {1, 2, 6, 12}) {
+				for (int date : new int[] {1, 28, 30}) {
+					if (month == 2 && date > 28) continue;
+					assertSameAsLegacy(pattern(year, month, date, 0, 0, 23, 59));
+				}
+			}
+		}
+	}
+
+	/** 曜日のみ。 */
+	@Test
+	public void testDayOfWeekSameAsLegacy() {
+		for (int dayOfWeek = 1; dayOfWeek <= 7; dayOfWeek++) {
+			for (int[] hm : HOUR_MINUTES) {
+				assertSameAsLegacy(pattern(0, 0, 0, dayOfWeek, 0, hm[0], hm[1]));
+			}
+		}
+	}
+
+	/** 第n曜日。第５曜日の無い月は飛ばす。 */
+	@Test
+	public void testDayOfWeekInMonthSameAsLegacy() {
+		for (int dayOfWeek = 1; dayOfWeek <= 7; dayOfWeek++) {
+			for (int n = 1; n <= 5; n++) {
+				for (int[] hm : HOUR_MINUTES) {
+					assertSameAsLegacy(pattern(0, 0, 0, dayOfWeek, n, hm[0], hm[1]));
+				}
+			}
+		}
+	}
+
+	/**
+	 * 相違点１：月の日数を超える日。
+	 * <li>旧実装は翌月に繰り越していた(4/31 -> 5/1)。</li>
+	 * <li>その日の有る次の月を返す。どの月にも無ければ NO_TIME。</li>
+	 */
+	@Test
+	public void testDateBeyondMonthLength() {
+		TimeZone tz = TimeZone.getTimeZone("Asia/Tokyo");
+		long now = time(tz, 2015, 4, 2, 12, 0);
+		assertNextTime(pattern(0, 0, 31, 0, 0, 0, 0), now, tz, time(tz, 2015, 5, 31, 0, 0));
+		now = time(tz, 2015, 1, 30, 12, 0);
+		assertNextTime(pattern(0, 0, 29, 0, 0, 0, 0), now, tz, time(tz, 2015, 3, 29, 0, 0));
+		now = time(tz, 2015, 1, 1, 0, 0);
+		assertNextTime(pattern(0, 2, 29, 0, 0, 0, 0), now, tz, time(tz, 2016, 2, 29, 0, 0));
+		assertNextTime(pattern(0, 2, 30, 0, 0, 0, 0), now, tz, TimerPattern.NO_TIME);
+		assertNextTime(pattern(2015, 2, 29, 0, 0, 0, 0), now, tz, TimerPattern.NO_TIME);
+	}
+
+	/**
+	 * 相違点２：月と曜日の組合せ。
+	 * <li>旧実装は曜日で７日ずつ進める際に月を無視していた(1月の日曜 -> 2/1)。</li>
+	 * <li>指定月の中で探す。</li>
+	 */
+	@Test
+	public void testMonthAndDayOfWeek() {
+		TimeZone tz = TimeZone.getTimeZone("Asia/Tokyo");
+		long now = time(tz, 2015, 1, 26, 12, 0);
+		assertNextTime(pattern(0, 1, 0, Calendar.SUNDAY, 0, 0, 0), now, tz, time(tz, 2016, 1, 3, 0, 0));
+		now = time(tz, 2015, 1, 4, 12, 0);
+		assertNextTime(pattern(0, 1, 0, Calendar.SUNDAY, 1, 0, 0), now, tz, time(tz, 2016, 1, 3, 0, 0));
+		now = time(tz, 2015, 1, 1, 0, 0);
+		assertNextTime(pattern(0, 5, 0, Calendar.FRIDAY, 5, 9, 0), now, tz, time(tz, 2015, 5, 29, 9, 0));
+	}
+
+	/**
+	 * 相違点３：年の指定。
+	 * <li>旧実装は現在の週や月をその年に当てはめていたので、前後の年の日を返す事が有った。</li>
+	 * <li>その年の中の now 以降で最初の一致日時を返す。</li>
+	 * <li>その年の一致日時が全て過ぎていれば、その年の最初の一致日時を返す(旧実装も過去の日時を返していた)。</li>
+	 */
+	@Test
+	public void testYear() {
+		TimeZone tz = TimeZone.getTimeZone("Asia/Tokyo");
+		long now = time(tz, 2015, 1, 1, 12, 0);
+		assertNextTime(pattern(2015, 0, 0, Calendar.SUNDAY, 0, 0, 0), now, tz, time(tz, 2015, 1, 4, 0, 0));
+		assertNextTime(pattern(2016, 0, 0, Calendar.SUNDAY, 0, 0, 0), now, tz, time(tz, 2016, 1, 3, 0, 0));
+		assertNextTime(pattern(2016, 2, 0, Calendar.SUNDAY, 1, 0, 0), now, tz, time(tz, 2016, 2, 7, 0, 0));
+		now = time(tz, 2015, 12, 27, 12, 0);
+		assertNextTime(pattern(2015, 0, 0, Calendar.FRIDAY, 0, 0, 0), now, tz, time(tz, 2015, 1, 2, 0, 0));
+		assertNextTime(pattern(2015, 0, 1, 0, 0, 0, 0), now, tz, time(tz, 2015, 1, 1, 0, 0));
+		assertNextTime(pattern(2014, 6, 0, Calendar.MONDAY, 2, 0, 0), now, tz, time(tz, 2014, 6, 9, 0, 0));
+	}
+
+	/**
+	 * 相違点４：夏時間の切り替え。
+	 * <li>旧実装は存在しない時刻を補正した後の時刻から７日や１か月進めていたので、以降の時刻がずれていた。</li>
+	 * <li>毎回指定の時刻で求める。存在しない時刻だけ切り替え後の時刻になる。</li>
+	 */
+	@Test
+	public void testDaylightSaving() {
+		TimeZone tz = TimeZone.getTimeZone("America/New_York");
+		TimerPattern p = pattern(0, 0, 0, Calendar.SUNDAY, 0, 2, 30);
+		long now = time(tz, 2015, 3, 2, 12, 0);
+		assertNextTime(p, now, tz, time(tz, 2015, 3, 8, 3, 30));
+		now = time(tz, 2015, 3, 9, 12, 0);
+		assertNextTime(p, now, tz, time(tz, 2015, 3, 15, 2, 30));
+		now = time(tz, 2015, 10, 26, 12, 0);
+		assertNextTime(pattern(0, 0, 0, Calendar.SUNDAY, 0, 1, 30), now, tz, time(tz, 2015, 11, 1, 1, 30));
+		assertNextTime(pattern(0, 0, 0, Calendar.SUNDAY, 1, 2, 30), now, tz, time(tz, 2015, 11, 1, 2, 30));
+	}
+
+	/** 有効でないパターン(空のパターンを含む)は一致日時無し。 */
+	@Test
+	public void testInvalidPattern() {
+		TimeZone tz = TimeZone.getTimeZone("Asia/Tokyo");
+		long now = time(tz, 2015, 1, 1, 0, 0);
+		assertEquals(TimerPattern.NO_TIME, TimerPattern.valueOf(TimerPattern.NO_CODE).getNextTime(now, tz));
+		assertEquals(TimerPattern.NO_TIME, new TimerPattern().getNextTime(now, tz));
+		assertEquals(TimerPattern.NO_TIME, pattern(2015, 1, 0, 0, 0, 0, 0).getNextTime(now, tz));
+		assertEquals(TimerPattern.NO_TIME, pattern(0, 0, 1, Calendar.MONDAY, 0, 0, 0).getNextTime(now, tz));
+		assertEquals(false, TimerPattern.valueOf(TimerPattern.NO_CODE).occurrences(now, tz).hasNext());
+		assertEquals(0, new TimerPattern().getTimes(now, Long.MAX_VALUE, tz, new long[10]));
+	}
+
+	/** 書き方が違ってもコードが同じなら同じ共有インスタンス。 */
+	@Test
+	public void testValueOfInterned() {
+		TimerPattern p1 = TimerPattern.valueOf("****/12/**/Mon/1");
+		TimerPattern p2 = TimerPattern.valueOf("****/12/**/Mon/1 00:00");
+		assertSame(p1, p2);
+		assertSame(p1, TimerPattern.valueOf(p1.toCode()));
+		assertEquals(true, p1.isFrozen());
+	}
+
+	/** 正規化文字列は解析して書き戻すと同じになる。時刻の省略は 00:00。 */
+	@Test
+	public void testFormalString() {
+		String[] formals = {
+			"****/12/**/Mon/1 13:00", "2015/01/31/***/* 23:59", "****/**/**/Sun/* 00:00",
+		};
+		for (String formal : formals) {
+			assertEquals(formal, TimerPattern.create(formal).toFormalString());
+		}
+		assertEquals("****/**/05/***/* 00:00", TimerPattern.create("****/**/05/***/*").toFormalString());
+		assertEquals(TimerPattern.create("****/12/**/Mon/1 00:00").toCode(), TimerPattern.toCode("****/12/**/Mon/1"));
+	}
+
+	/** 書式エラーは最初に不正となった位置と理由を持つ。 */
+	@Test
+	public void testFormatError() {
+		assertFormatError("2015/01", 7, "Missing '/'");
+		assertFormatError("****/12//Mon/1", 8, "Empty field");
+		assertFormatError("*1**/12/**/Mon/1", 1, "Expected '*'");
+		assertFormatError("****/1a/**/Mon/1", 6, "Expected digit");
+		assertFormatError("1234567890/**/05/***/*", 0, "Too long field");
+		assertFormatError("****/12/**/Mox/1 13:00", 11, "Unknown day of week");
+		assertFormatError("****/12/**/Mon/1 13-00", 22, "Missing ':'");
+		assertFormatError("****/**/05/***/* 12:", 20, "Empty field");
+		assertFormatError("****/**/05/***/*/", 16, "Expected '*'");
+	}
+
+	/** 書式エラーの場合は何も変更しない。 */
+	@Test
+	public void testFormatErrorKeepsValues() {
+		TimerPattern p = TimerPattern.create("2015/01/31/***/* 23:59");
+		long code = p.toCode();
+		try {
+			p.fromFormalString("****/12/**/Mon/1 13-00");
+			fail();
+		} catch (FormatException e) {
+			assertEquals(code, p.toCode());
+		}
+	}
+
+	/** occurrences() は getNextTime() を直前の一致の直後から繰り返したものと同じ。夏時間の切り替えも跨ぐ。 */
+	@Test
+	public void testOccurrences() {
+		TimeZone tz = TimeZone.getTimeZone("America/New_York");
+		TimerPattern p = pattern(0, 0, 0, Calendar.SUNDAY, 0, 2, 30);
+		long now = time(tz, 2015, 1, 1, 0, 0);
+		TimerPattern.Occurrences ite = p.occurrences(now, tz);
+		long prev = now - 1;
+		for (int i = 0; i < 60; i++) {
+			long time = ite.nextTime();
+			assertEquals("#" + i, p.getNextTime(prev + 1, tz), time);
+			assertEquals(true, time > prev);
+			prev = time;
+		}
+		assertEquals(true, ite.hasNext());
+	}
+
+	/** 年が指定されていればその年の一致で終わる。 */
+	@Test
+	public void testOccurrencesEnd() {
+		TimeZone tz = TimeZone.getTimeZone("Asia/Tokyo");
+		TimerPattern p = pattern(2015, 0, 0, Calendar.MONDAY, 1, 10, 0);
+		TimerPattern.Occurrences ite = p.occurrences(time(tz, 2015, 1, 1, 0, 0), tz);
+		int n = 0;
+		long prev = 0;
+		while (ite.hasNext()) {
+			long time = ite.nextTime();
+			assertEquals(true, time > prev);
+			prev = time;
+			n++;
+		}
+		assertEquals(12, n);
+		assertEquals(time(tz, 2015, 12, 7, 10, 0), prev);
+		try {
+			ite.nextTime();
+			fail();
+		} catch (NoSuchElementException e) {
+			// OK
+		}
+		assertEquals(false, p.occurrences(time(tz, 2016, 1, 1, 0, 0), tz).hasNext());
+	}
+
+	/** getTimes() は開始時刻を含み終了時刻を含まない。配列長を超えては格納しない。 */
+	@Test
+	public void testGetTimes() {
+		TimeZone tz = TimeZone.getTimeZone("Asia/Tokyo");
+		TimerPattern p = pattern(0, 0, 5, 0, 0, 9, 0);
+		long from = time(tz, 2015, 1, 5, 9, 0);
+		long to = time(tz, 2015, 4, 5, 9, 0);
+		long[] times = new long[10];
+		assertEquals(3, p.getTimes(from, to, tz, times));
+		assertEquals(time(tz, 2015, 1, 5, 9, 0), times[0]);
+		assertEquals(time(tz, 2015, 2, 5, 9, 0), times[1]);
+		assertEquals(time(tz, 2015, 3, 5, 9, 0), times[2]);
+		assertEquals(4, p.getTimes(from, to + 1, tz, times));
+		assertEquals(3, p.getTimes(from + 1, to + 1, tz, times));
+		assertEquals(time(tz, 2015, 2, 5, 9, 0), times[0]);
+
+		long[] small = new long[2];
+		assertEquals(2, p.getTimes(from, Long.MAX_VALUE, tz, small));
+		assertEquals(time(tz, 2015, 2, 5, 9, 0), small[1]);
+		assertEquals(0, p.getTimes(from, from, tz, times));
+	}
+
+	private static String internFormal(int year) {
+		return year + "/01/01/***/* 00:00";
+	}
+
+	/** valueOf() のキャッシュのヒット数とミス数。 */
+	@Test
+	public void testInternCounters() {
+		int hits = TimerPattern.getInternHitCount();
+		int misses = TimerPattern.getInternMissCount();
+		TimerPattern p = TimerPattern.valueOf(internFormal(2100));
+		assertEquals(hits, TimerPattern.getInternHitCount());
+		assertEquals(misses + 1, TimerPattern.getInternMissCount());
+		assertSame(p, TimerPattern.valueOf(internFormal(2100)));
+		assertSame(p, TimerPattern.valueOf(p.toCode()));
+		assertEquals(hits + 2, TimerPattern.getInternHitCount());
+		assertEquals(misses + 1, TimerPattern.getInternMissCount());
+		TimerPattern.valueOf(TimerPattern.NO_CODE);
+		TimerPattern.valueOf((String) null);
+		assertEquals(hits + 2, TimerPattern.getInternHitCount());
+		assertEquals(misses + 1, TimerPattern.getInternMissCount());
+	}
+
+	/** キャッシュが一杯になったら一番長く使われていないものを追い出す。 */
+	@Test
+	public void testInternEviction() {
+		final int size = 32;
+		TimerPattern kept = TimerPattern.valueOf(internFormal(2200));
+		TimerPattern evicted = TimerPattern.valueOf(internFormal(2201));
+		for (int i = 2; i < size; i++) {
+			TimerPattern.valueOf(internFormal(2200 + i));
+		}
+		// ここで kept が一番古いが、使うと evicted が一番古くなる。
+		assertSame(kept, TimerPattern.valueOf(internFormal(2200)));
+		TimerPattern.valueOf(internFormal(2200 + size));
+
+		int misses = TimerPattern.getInternMissCount();
+		assertSame(kept, TimerPattern.valueOf(internFormal(2200)));
+		assertEquals(misses, TimerPattern.getInternMissCount());
+		assertNotSame(evicted, TimerPattern.valueOf(internFormal(2201)));
+		assertEquals(misses + 1, TimerPattern.getInternMissCount());
+	}
+
+	/** 変更不可のインスタンスは値を変更するメソッドで IllegalStateException となり、値は変わらない。 */
+	@Test
+	public void testFreeze() {
+		final TimerPattern p = TimerPattern.create("****/12/**/Mon/1 13:00").freeze();
+		final long code = p.toCode();
+		Runnable[] setters = {
+			new Runnable() { @Override public void run() { p.setYear(2015); } },
+			new Runnable() { @Override public void run() { p.setMonth(1); } },
+			new Runnable() { @Override public void run() { p.setDate(1); } },
+			new Runnable() { @Override public void run() { p.setDayOfWeek(Calendar.SUNDAY); } },
+			new Runnable() { @Override public void run() { p.setDayOfWeekInMonth(2); } },
+			new Runnable() { @Override public void run() { p.setHour(1); } },
+			new Runnable() { @Override public void run() { p.setMinute(1); } },
+			new Runnable() { @Override public void run() { p.fromFormalString("2015/01/31/***/* 23:59"); } },
+			new Runnable() { @Override public void run() { p.fromCode(0); } },
+		};
+		for (int i = 0; i < setters.length; i++) {
+			try {
+				setters[i].run();
+				fail("#" + i);
+			} catch (IllegalStateException e) {
+				assertEquals("#" + i, code, p.toCode());
+			}
+		}
+		assertEquals(false, TimerPattern.create(code).isFrozen());
+	}
+}